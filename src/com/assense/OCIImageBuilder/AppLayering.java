@@ -0,0 +1,123 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.IOException;
+import java.lang.module.FindException;
+import java.lang.module.ModuleFinder;
+import java.lang.module.ModuleReference;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Splits the app directory into several layers at /opt/app, ordered from the most stable (third-party
+ * dependencies) to the most volatile (the application's own code), so that a code change only
+ * produces a new top layer and the dependency layers keep their digests and cache entries.
+ * <p>
+ * With {@code --app-layer name=glob[,glob...]} rules, each file goes to the first rule with a
+ * matching glob (matched against its path relative to the app directory) and everything else to
+ * the final {@code application} layer. Without rules, the modules {@code -p /opt/app} resolves
+ * are inspected: JARs directly in the app directory that are not the main module go to a
+ * {@code dependencies} layer. Layers below {@code application} that would be empty are left out;
+ * {@code application} itself also takes the empty directories.
+ */
+public class AppLayering {
+    static final String DEPENDENCIES = "dependencies";
+    static final String APPLICATION = "application";
+
+    /** A layering rule: files matching any of {@code globs} go to the layer {@code name}. */
+    public record Rule(String name, List<String> globs) {
+        /** Parses {@code name=glob[,glob...]}. */
+        public static Rule parse(String spec) {
+            int eq = spec.indexOf('=');
+            if (eq <= 0 || eq == spec.length() - 1) {
+                throw new IllegalArgumentException("Invalid app layer rule: " + spec + " (use name=glob[,glob...])");
+            }
+            return new Rule(spec.substring(0, eq), List.of(spec.substring(eq + 1).split(",")));
+        }
+    }
+
+    /**
+     * One app layer.
+     *
+     * @param name    layer name, for messages
+     * @param include selects the entries of the layer by path relative to the app directory
+     * @param files   number of files in the layer when it was planned
+     */
+    public record Part(String name, Predicate<Path> include, int files) {}
+
+    private final List<String> names = new ArrayList<>();
+    private final List<List<PathMatcher>> matchers = new ArrayList<>();
+    private final Path appDir;
+    private final String moduleName;
+    // JAR -> whether it is a dependency (not the main module); filled by all layer builds concurrently
+    private final Map<Path, Boolean> dependencies = new ConcurrentHashMap<>();
+
+    /**
+     * @param appDir     directory of the app layers
+     * @param rules      layering rules in order, or empty to detect dependency modules
+     * @param moduleName main module, which stays in the application layer
+     */
+    public AppLayering(Path appDir, List<Rule> rules, String moduleName) {
+        this.appDir = appDir;
+        this.moduleName = moduleName;
+        FileSystem fs = FileSystems.getDefault();
+        for (Rule rule : rules) {
+            if (rule.name().equals(APPLICATION) || names.contains(rule.name())) {
+                throw new IllegalArgumentException("Duplicate app layer: " + rule.name());
+            }
+            names.add(rule.name());
+            matchers.add(rule.globs().stream().map(glob -> fs.getPathMatcher("glob:" + glob)).toList());
+        }
+        if (rules.isEmpty()) names.add(DEPENDENCIES);
+        names.add(APPLICATION);
+    }
+
+    /** Assigns the files of the app directory to layers, most stable first, {@code application} last. */
+    public List<Part> plan() throws IOException {
+        int[] counts = new int[names.size()];
+        try (var walk = Files.walk(appDir)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                if (!Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) counts[layerOf(appDir.relativize(file))]++;
+            }
+        }
+        List<Part> parts = new ArrayList<>();
+        int last = names.size() - 1;
+        for (int i = 0; i < last; i++) {
+            int layer = i;
+            if (counts[i] > 0) parts.add(new Part(names.get(i), path -> layerOf(path) == layer, counts[i]));
+        }
+        parts.add(new Part(APPLICATION, path -> layerOf(path) == last, counts[last]));
+        return parts;
+    }
+
+    // Index into names of the layer taking relative path
+    private int layerOf(Path relative) {
+        if (matchers.isEmpty()) {
+            return isDependency(relative) ? 0 : 1;
+        }
+        for (int i = 0; i < matchers.size(); i++) {
+            for (PathMatcher m : matchers.get(i)) {
+                if (m.matches(relative)) return i;
+            }
+        }
+        return names.size() - 1;
+    }
+
+    // A JAR on the module path other than the main module (automatic modules included)
+    private boolean isDependency(Path relative) {
+        if (relative.getNameCount() != 1 || !relative.toString().endsWith(".jar")) return false;
+        return dependencies.computeIfAbsent(relative, r -> {
+            Path jar = appDir.resolve(r);
+            if (!Files.isRegularFile(jar)) return false;
+            try {
+                return ModuleFinder.of(jar).findAll().stream()
+                        .map(ModuleReference::descriptor)
+                        .noneMatch(d -> d.name().equals(moduleName));
+            } catch (FindException e) {
+                // not a valid module: cannot be the main one
+                return true;
+            }
+        });
+    }
+}
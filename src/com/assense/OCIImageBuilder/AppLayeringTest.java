@@ -0,0 +1,91 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+public class AppLayeringTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-app-layering-work";
+        LayerCacheTest.cleanDir(workDir);
+        Path app = Files.createDirectories(Paths.get(workDir, "app"));
+        writeJar(app.resolve("lib-a.jar"), null);
+        writeJar(app.resolve("main.jar"), "m");
+        Files.createDirectories(app.resolve("conf"));
+        Files.writeString(app.resolve("conf/app.properties"), "a=1");
+        Files.createDirectories(app.resolve("plugins"));
+        writeJar(app.resolve("plugins/p.jar"), null);
+        Files.createDirectories(app.resolve("empty"));
+
+        // --- 1. Detected: only top-level JARs that are not the main module are dependencies ---
+        List<AppLayering.Part> parts = new AppLayering(app, List.of(), "m").plan();
+        if (!names(parts).equals(List.of("dependencies", "application"))) throw new AssertionError("Parts: " + names(parts));
+        if (parts.get(0).files() != 1 || parts.get(1).files() != 3) throw new AssertionError("File counts: " + parts);
+
+        // --- 2. Layers hold disjoint files, with the directories leading to them ---
+        BlobStore store = new BlobStore(Paths.get(workDir, "cache"));
+        LayerCache cache = new LayerCache(store, false);
+        List<Layer> layers = build(cache, store, app, parts);
+        Map<String, byte[]> deps = ImageArchiveTest.readEntries(store.path(layers.get(0).digest()));
+        Map<String, byte[]> rest = ImageArchiveTest.readEntries(store.path(layers.get(1).digest()));
+        if (!deps.keySet().equals(Set.of("opt", "opt/app", "opt/app/lib-a.jar"))) throw new AssertionError("Deps: " + deps.keySet());
+        if (!rest.keySet().equals(Set.of("opt", "opt/app", "opt/app/conf", "opt/app/conf/app.properties", "opt/app/empty",
+                "opt/app/main.jar", "opt/app/plugins", "opt/app/plugins/p.jar"))) {
+            throw new AssertionError("Application: " + rest.keySet());
+        }
+
+        // --- 3. An application change leaves the dependency layer (and its cache entry) alone ---
+        Files.writeString(app.resolve("conf/app.properties"), "a=2");
+        List<Layer> changed = build(cache, store, app, new AppLayering(app, List.of(), "m").plan());
+        if (!changed.get(0).equals(layers.get(0))) throw new AssertionError("Dependency layer changed");
+        if (changed.get(1).digest().equals(layers.get(1).digest())) throw new AssertionError("Application layer unchanged");
+        String depsKey = cache.key(app, "/opt/app", "epoch=0,compression=NONE", parts.get(0).include());
+        writeJar(app.resolve("lib-a.jar"), "a");
+        if (cache.key(app, "/opt/app", "epoch=0,compression=NONE", parts.get(0).include()).equals(depsKey)) {
+            throw new AssertionError("Dependency change not detected");
+        }
+
+        // --- 4. Glob rules: first match wins, unmatched rules are left out ---
+        parts = new AppLayering(app, List.of(AppLayering.Rule.parse("libs=*.jar,plugins/**"),
+                AppLayering.Rule.parse("docs=**.md"), AppLayering.Rule.parse("conf=conf/**")), "m").plan();
+        if (!names(parts).equals(List.of("libs", "conf", "application"))) throw new AssertionError("Rule parts: " + names(parts));
+        if (parts.get(0).files() != 3 || parts.get(2).files() != 0) throw new AssertionError("Rule counts: " + parts);
+
+        // --- 5. Selecting everything writes the same archive as no selection ---
+        ByteArrayOutputStream all = new ByteArrayOutputStream(), unfiltered = new ByteArrayOutputStream();
+        OCIImageBuilder.createTarWithDir(app.toString(), "/opt/app", p -> true, all, 0L);
+        OCIImageBuilder.createTarWithDir(app.toString(), "/opt/app", unfiltered, 0L);
+        if (!Arrays.equals(all.toByteArray(), unfiltered.toByteArray())) throw new AssertionError("Filter changed the archive");
+
+        System.out.println("All AppLayering assertions passed!");
+        LayerCacheTest.cleanDir(workDir);
+    }
+
+    private static List<Layer> build(LayerCache cache, BlobStore store, Path app, List<AppLayering.Part> parts)
+            throws Exception {
+        List<Layer> layers = new ArrayList<>();
+        for (AppLayering.Part part : parts) {
+            layers.add(OCIImageBuilder.buildDirLayer(cache, store.blobs, app.toString(), "/opt/app", part.name(),
+                    part.include(), 0L, Layer.Compression.NONE));
+        }
+        return layers;
+    }
+
+    private static List<String> names(List<AppLayering.Part> parts) {
+        return parts.stream().map(AppLayering.Part::name).toList();
+    }
+
+    // An empty JAR, named as an automatic module if moduleName is given
+    private static void writeJar(Path jar, String moduleName) throws Exception {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (moduleName != null) manifest.getMainAttributes().putValue("Automatic-Module-Name", moduleName);
+        try (OutputStream out = Files.newOutputStream(jar)) {
+            new JarOutputStream(out, manifest).close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Benchmarks of the build's hot paths over two synthetic trees: many small files (like class
+ * files and small JARs) and a few large ones (like lib/modules or fat JARs). Each benchmark runs
+ * warmup iterations first, so that the measured iterations run JIT-compiled code, and reports
+ * the mean and best time and the throughput of the mean. The trees stay in the page cache, so
+ * the results are those of a warm rebuild, not of cold disk reads.
+ * <p>
+ * A plain main class like the tests, so it runs from the same javac output without a build tool:
+ * <pre>
+ * java -cp out com.assense.OCIImageBuilder.Benchmarks [--only &lt;name-part&gt;] [--json &lt;file&gt;]
+ *     [--small-files &lt;n&gt;] [--large-files &lt;n&gt;] [--large-size &lt;MiB&gt;] [--warmup &lt;n&gt;] [--iterations &lt;n&gt;]
+ * </pre>
+ */
+public class Benchmarks {
+    record Result(String name, int iterations, double meanMillis, double minMillis, long bytes) {
+        double mibPerSecond() {
+            return bytes / (double) (1 << 20) / (meanMillis / 1000);
+        }
+    }
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    private final int warmup, iterations;
+    private final String only;
+    private final List<Result> results = new ArrayList<>();
+
+    Benchmarks(int warmup, int iterations, String only) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.only = only;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int smallFiles = 20_000, largeFiles = 4, largeMiB = 64, warmup = 3, iterations = 5;
+        String only = null;
+        Path json = null;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+            switch (args[i]) {
+                case "--small-files" -> smallFiles = Integer.parseInt(args[++i]);
+                case "--large-files" -> largeFiles = Integer.parseInt(args[++i]);
+                case "--large-size" -> largeMiB = Integer.parseInt(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--iterations" -> iterations = Integer.parseInt(args[++i]);
+                case "--only" -> only = args[++i];
+                case "--json" -> json = Paths.get(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        Path work = Files.createTempDirectory("oci-benchmarks");
+        try {
+            Benchmarks bench = new Benchmarks(warmup, iterations, only);
+            Map<String, Path> trees = new LinkedHashMap<>();
+            trees.put("small", smallTree(work.resolve("small"), smallFiles));
+            trees.put("large", largeTree(work.resolve("large"), largeFiles, largeMiB));
+            bench.runAll(work, trees, largeMiB);
+            if (json != null) Files.writeString(json, bench.json());
+        } finally {
+            JREBuilder.deleteDir(work);
+        }
+    }
+
+    void runAll(Path work, Map<String, Path> trees, int largeMiB) throws Exception {
+        byte[] data = new byte[largeMiB << 20];
+        new Random(1).nextBytes(data);
+        run("sha256 array", data.length, () -> Digests.sha256(data));
+        List<Path> large;
+        try (var files = Files.list(trees.get("large").resolve("lib"))) {
+            large = files.sorted().toList();
+        }
+        if (!large.isEmpty()) {
+            run("sha256 file", Files.size(large.get(0)), () -> Digests.sha256(large.get(0)));
+            // one thread per file; scales with the CPUs up to disk or memory bandwidth
+            ExecutorService pool = Executors.newFixedThreadPool(large.size());
+            try {
+                run("sha256 files parallel", contentSize(trees.get("large")), () -> Digests.sha256(large, pool));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        Path blobs = Files.createDirectories(work.resolve("blobs"));
+        run("writeBlob", data.length, () -> {
+            String digest = OCIImageBuilder.writeBlob(blobs, out -> out.write(data));
+            Files.delete(blobs.resolve(digest));
+        });
+
+        for (Map.Entry<String, Path> tree : trees.entrySet()) {
+            String src = tree.getValue().toString();
+            run("createTarWithDir " + tree.getKey(), contentSize(tree.getValue()),
+                    () -> OCIImageBuilder.createTarWithDir(src, "/opt/jre", OutputStream.nullOutputStream(), 0L));
+        }
+
+        // End to end: the tree as the JRE of an image on a one-file base image from a local registry
+        Path app = Files.createDirectories(work.resolve("app/m"));
+        Files.writeString(app.resolve("A.class"), "cls");
+        try (TestRegistry registry = new TestRegistry()) {
+            Path baseDir = Files.createDirectories(work.resolve("base/etc"));
+            Files.writeString(baseDir.resolve("hello"), "hi");
+            String layer = registry.putBlob(RegistryClientTest.gzipTar(work.resolve("base")));
+            String config = registry.putBlob("{ \"rootfs\": { \"type\": \"layers\", \"diff_ids\": [] } }".getBytes());
+            registry.putManifest("base", "latest", RegistryClient.OCI_MANIFEST, """
+                    { "schemaVersion": 2, "mediaType": "application/vnd.oci.image.manifest.v1+json",
+                      "config": { "mediaType": "application/vnd.oci.image.config.v1+json", "digest": "%s" },
+                      "layers": [ { "mediaType": "application/vnd.oci.image.layer.v1.tar+gzip", "digest": "%s" } ] }
+                    """.formatted(config, layer));
+            for (Map.Entry<String, Path> tree : trees.entrySet()) {
+                long size = contentSize(tree.getValue());
+                List<String> args = List.of("--base", registry.host() + "/base:latest", "--jre", tree.getValue().toString(),
+                        "--app", work.resolve("app").toString(), "--module", "m", "--out", work.resolve("out").toString(),
+                        "--reproducible");
+                List<String> noCache = new ArrayList<>(args);
+                noCache.add("--no-cache");
+                run("main " + tree.getKey() + " no-cache", size, () -> build(noCache, work.resolve("out")));
+                // warmup fills the cache, so this measures a rebuild without changes
+                List<String> cached = new ArrayList<>(args);
+                cached.addAll(List.of("--cache-dir", work.resolve("cache").toString()));
+                run("main " + tree.getKey() + " cached", size, () -> build(cached, work.resolve("out")));
+            }
+        }
+    }
+
+    // Runs main with its console output discarded
+    private static void build(List<String> args, Path out) throws Exception {
+        JREBuilder.deleteDir(out);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            OCIImageBuilder.main(args.toArray(new String[0]));
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    // Times body over the measured iterations; bytes is what one iteration processes
+    void run(String name, long bytes, Body body) throws Exception {
+        if (only != null && !name.contains(only)) return;
+        for (int i = 0; i < warmup; i++) body.run();
+        double total = 0, min = Double.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            // start each iteration with a collected heap, so no iteration pays for another's garbage
+            System.gc();
+            long start = System.nanoTime();
+            body.run();
+            double millis = (System.nanoTime() - start) / 1e6;
+            total += millis;
+            min = Math.min(min, millis);
+        }
+        Result result = new Result(name, iterations, total / iterations, min, bytes);
+        results.add(result);
+        System.out.printf(Locale.ROOT, "%-30s %10.1f ms mean %10.1f ms best %10.1f MiB/s%n",
+                name, result.meanMillis(), result.minMillis(), result.mibPerSecond());
+    }
+
+    String json() {
+        StringJoiner entries = new StringJoiner(",\n", "[\n", "\n]\n");
+        for (Result r : results) {
+            entries.add(String.format(Locale.ROOT, "  { \"name\": %s, \"iterations\": %d, \"meanMillis\": %.3f,"
+                    + " \"minMillis\": %.3f, \"bytes\": %d, \"mibPerSecond\": %.1f }",
+                    Json.quote(r.name()), r.iterations(), r.meanMillis(), r.minMillis(), r.bytes(), r.mibPerSecond()));
+        }
+        return entries.toString();
+    }
+
+    // files of 256 B to 8 KiB, 100 per directory
+    static Path smallTree(Path dir, int files) throws IOException {
+        Random random = new Random(2);
+        for (int i = 0; i < files; i++) {
+            Path file = dir.resolve("d" + i / 100).resolve("C" + i + ".class");
+            if (i % 100 == 0) Files.createDirectories(file.getParent());
+            byte[] content = new byte[256 + random.nextInt(8 * 1024 - 256)];
+            random.nextBytes(content);
+            Files.write(file, content);
+        }
+        return dir;
+    }
+
+    static Path largeTree(Path dir, int files, int mib) throws IOException {
+        Files.createDirectories(dir.resolve("lib"));
+        Random random = new Random(3);
+        byte[] chunk = new byte[1 << 20];
+        for (int i = 0; i < files; i++) {
+            try (OutputStream out = Files.newOutputStream(dir.resolve("lib/large-" + i + ".bin"))) {
+                for (int m = 0; m < mib; m++) {
+                    random.nextBytes(chunk);
+                    out.write(chunk);
+                }
+            }
+        }
+        return dir;
+    }
+
+    static long contentSize(Path dir) throws IOException {
+        try (var files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Content-addressed blob store shared by all builds and output layouts on this machine.
+ * <p>
+ * Blobs are written once to {@code blobs/sha256} below the store root and hard-linked into each
+ * output layout, so building many images costs disk and time proportional to unique content only.
+ * {@code index.tsv} records size, media type and last use of each blob. The hard-link count doubles
+ * as reference count: a blob whose only link is the store itself is no longer used by any layout
+ * and may be garbage collected once it has not been used for a while.
+ */
+public class BlobStore {
+    // serializes index updates between threads; the file lock only excludes other processes
+    private static final Object INDEX_LOCK = new Object();
+
+    final Path root;
+    final Path blobs;
+    private final Path index;
+
+    /** Index entry of one blob. */
+    public record Entry(String digest, long size, String mediaType, long lastUsed) {
+    }
+
+    public BlobStore(Path root) throws IOException {
+        this.root = root;
+        this.blobs = root.resolve("blobs/sha256");
+        this.index = root.resolve("index.tsv");
+        Files.createDirectories(blobs);
+    }
+
+    public Path path(String digest) {
+        return blobs.resolve(digest);
+    }
+
+    public boolean contains(String digest) {
+        return Files.exists(path(digest));
+    }
+
+    /** Hard-links (or, across file systems, copies) the blobs into a layout's blobs/sha256 directory. */
+    public void linkInto(Path BLOBS, Collection<String> digests) throws IOException {
+        for (String digest : digests) LayerCache.linkOrCopy(path(digest), BLOBS.resolve(digest));
+    }
+
+    /** Records the blobs as used now, with their size and media type. */
+    public void record(Map<String, String> mediaTypes) throws IOException {
+        long now = System.currentTimeMillis();
+        updateIndex(entries -> {
+            for (Map.Entry<String, String> blob : mediaTypes.entrySet()) {
+                String digest = blob.getKey();
+                entries.put(digest, new Entry(digest, Files.size(path(digest)), blob.getValue(), now));
+            }
+        });
+    }
+
+    /**
+     * Records the blob as used now, so that a concurrent {@link #gc} keeps it until the build links it
+     * into its layout. Returns false, recording nothing, if the blob is missing or not of size bytes.
+     */
+    public boolean markUsed(String digest, long size, String mediaType) throws IOException {
+        boolean[] present = {false};
+        updateIndex(entries -> {
+            Path blob = path(digest);
+            if (!Files.exists(blob) || Files.size(blob) != size) return;
+            entries.put(digest, new Entry(digest, size, mediaType, System.currentTimeMillis()));
+            present[0] = true;
+        });
+        return present[0];
+    }
+
+    /** Returns the index, keyed by digest. */
+    public Map<String, Entry> entries() throws IOException {
+        synchronized (INDEX_LOCK) {
+            return readIndex();
+        }
+    }
+
+    /**
+     * Deletes blobs that no layout links to any more and that were not used within {@code maxAge},
+     * along with layer cache entries pointing to them and cached JREs (see {@link JREBuilder}) unused
+     * for as long. Returns the number of bytes freed.
+     */
+    public long gc(Duration maxAge) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAge.toMillis();
+        long[] freed = {0};
+        updateIndex(entries -> {
+            List<Path> candidates;
+            try (var stream = Files.list(blobs)) {
+                candidates = stream.filter(p -> !p.getFileName().toString().startsWith(".")).toList();
+            }
+            for (Path blob : candidates) {
+                String digest = blob.getFileName().toString();
+                Entry entry = entries.get(digest);
+                long lastUsed = entry != null ? entry.lastUsed() : Files.getLastModifiedTime(blob).toMillis();
+                if (lastUsed > cutoff || linkCount(blob) > 1) continue;
+                long size = Files.size(blob);
+                Files.deleteIfExists(blob);
+                entries.remove(digest);
+                freed[0] += size;
+            }
+            entries.keySet().removeIf(digest -> !contains(digest));
+        });
+        LayerCache.dropEntriesWithoutBlobs(root.resolve("layers"), this);
+        return freed[0] + JREBuilder.collectCache(root, cutoff);
+    }
+
+    /**
+     * Rehashes all blobs, in parallel on pool, and deletes those whose content does not match their
+     * name, along with their index and layer cache entries. Returns the digests of deleted blobs.
+     * Layouts keep their links to a corrupt blob until a rebuild replaces them with the rewritten one.
+     */
+    public List<String> verify(ExecutorService pool) throws Exception {
+        List<String> digests;
+        try (var stream = Files.list(blobs)) {
+            digests = stream.map(p -> p.getFileName().toString()).filter(name -> !name.startsWith(".")).toList();
+        }
+        List<String> corrupt = Digests.verify(blobs, digests, pool);
+        if (corrupt.isEmpty()) return corrupt;
+        updateIndex(entries -> {
+            for (String digest : corrupt) {
+                Files.deleteIfExists(path(digest));
+                entries.remove(digest);
+            }
+        });
+        LayerCache.dropEntriesWithoutBlobs(root.resolve("layers"), this);
+        return corrupt;
+    }
+
+    // Number of hard links to a file; unknown counts as referenced so such blobs are never collected
+    static int linkCount(Path file) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private interface IndexUpdate {
+        void apply(Map<String, Entry> entries) throws IOException;
+    }
+
+    // Read-modify-write of the index under a thread lock and an inter-process file lock
+    private void updateIndex(IndexUpdate update) throws IOException {
+        synchronized (INDEX_LOCK) {
+            try (FileChannel lockChannel = FileChannel.open(root.resolve("index.lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lockChannel.lock();  // released when the channel closes
+                Map<String, Entry> entries = readIndex();
+                update.apply(entries);
+                Path tmp = root.resolve(".index-" + UUID.randomUUID() + ".tmp");
+                try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    for (Entry e : entries.values()) {
+                        w.write(e.digest() + "\t" + e.size() + "\t" + e.mediaType() + "\t" + e.lastUsed());
+                        w.newLine();
+                    }
+                }
+                Files.move(tmp, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private Map<String, Entry> readIndex() throws IOException {
+        Map<String, Entry> entries = new TreeMap<>();
+        if (!Files.exists(index)) return entries;
+        for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+            String[] f = line.split("\t");
+            if (f.length != 4) continue;
+            entries.put(f[0], new Entry(f[0], Long.parseLong(f[1]), f[2], Long.parseLong(f[3])));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,108 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+public class BlobStoreTest {
+    public static void main(String[] args) throws Exception {
+        String storeDir = "test-blobstore";
+        String outA = "test-blobstore-a", outB = "test-blobstore-b";
+        LayerCacheTest.cleanDir(storeDir);
+        LayerCacheTest.cleanDir(outA);
+        LayerCacheTest.cleanDir(outB);
+
+        BlobStore store = new BlobStore(Paths.get(storeDir));
+        String shared = OCIImageBuilder.writeBlob("{\"shared\":true}", store.blobs);
+        String onlyA = OCIImageBuilder.writeBlob("{\"a\":1}", store.blobs);
+        String onlyB = OCIImageBuilder.writeBlob("{\"b\":2}", store.blobs);
+
+        // --- 1. Writing the same content again keeps the existing file ---
+        Object inode = Files.getAttribute(store.path(shared), "unix:ino");
+        if (!OCIImageBuilder.writeBlob("{\"shared\":true}", store.blobs).equals(shared)) throw new AssertionError("digest differs");
+        if (!Files.getAttribute(store.path(shared), "unix:ino").equals(inode)) throw new AssertionError("existing blob replaced");
+
+        // --- 2. Layouts share one copy of each blob through hard links ---
+        Path a = Files.createDirectories(Paths.get(outA, "blobs/sha256"));
+        Path b = Files.createDirectories(Paths.get(outB, "blobs/sha256"));
+        store.linkInto(a, List.of(shared, onlyA));
+        store.linkInto(b, List.of(shared, onlyB));
+        if (!Files.isSameFile(a.resolve(shared), b.resolve(shared))) throw new AssertionError("blob not shared");
+        if (BlobStore.linkCount(store.path(shared)) != 3) throw new AssertionError("expected 3 links to shared blob");
+
+        // --- 2b. A copy (as made across file systems) is kept while it has the blob's size and mtime ---
+        Path copy = a.resolve(onlyA);
+        Files.delete(copy);
+        Files.copy(store.path(onlyA), copy, StandardCopyOption.COPY_ATTRIBUTES);
+        Object copied = Files.getAttribute(copy, "unix:ino");
+        store.linkInto(a, List.of(onlyA));
+        if (!Files.getAttribute(copy, "unix:ino").equals(copied)) throw new AssertionError("intact copy replaced");
+        // as if the store had rewritten the blob after --verify deleted it
+        Files.setLastModifiedTime(store.path(onlyA), FileTime.fromMillis(Files.getLastModifiedTime(copy).toMillis() + 1000));
+        store.linkInto(a, List.of(onlyA));
+        if (!Files.isSameFile(copy, store.path(onlyA))) throw new AssertionError("stale copy kept");
+
+        // --- 3. Index records size and media type ---
+        store.record(Map.of(shared, "application/json", onlyA, "application/json", onlyB, "application/json"));
+        BlobStore.Entry entry = store.entries().get(shared);
+        if (entry == null || entry.size() != Files.size(store.path(shared)) || !entry.mediaType().equals("application/json")) {
+            throw new AssertionError("bad index entry: " + entry);
+        }
+
+        // --- 4. GC keeps referenced and recently used blobs ---
+        LayerCacheTest.cleanDir(outB);
+        if (store.gc(Duration.ofDays(1)) != 0) throw new AssertionError("recently used blob collected");
+
+        // --- 5. GC deletes unreferenced blobs past the age limit, with cache entries pointing to them ---
+        LayerCache cache = new LayerCache(store, false);
+        long sizeB = Files.size(store.path(onlyB));
+        cache.store("k", new Layer(Layer.MEDIA_TYPE_TAR, onlyB, "sha256:" + onlyB, sizeB));
+        Thread.sleep(20);
+        long freed = store.gc(Duration.ofMillis(10));
+        if (freed != sizeB) throw new AssertionError("freed " + freed + " bytes, expected " + sizeB);
+        if (store.contains(onlyB)) throw new AssertionError("unreferenced blob kept");
+        if (!store.contains(shared) || !store.contains(onlyA)) throw new AssertionError("referenced blob collected");
+        if (store.entries().containsKey(onlyB)) throw new AssertionError("index entry of collected blob kept");
+        if (cache.fetch("k").isPresent() || Files.exists(cache.layers.resolve("k.properties"))) {
+            throw new AssertionError("cache entry of collected blob kept");
+        }
+
+        // --- 5b. A cache hit marks its blob as used, so a gc before the build links it keeps it ---
+        String hit = OCIImageBuilder.writeBlob("{\"hit\":true}", store.blobs);
+        cache.store("hit", new Layer(Layer.MEDIA_TYPE_TAR, hit, "sha256:" + hit, Files.size(store.path(hit))));
+        Files.setLastModifiedTime(store.path(hit), FileTime.fromMillis(0));
+        if (cache.fetch("hit").isEmpty()) throw new AssertionError("cache entry not hit");
+        store.gc(Duration.ofDays(1));
+        if (!store.contains(hit)) throw new AssertionError("blob of a cache hit collected");
+        Files.delete(store.path(hit));
+        if (cache.fetch("hit").isPresent()) throw new AssertionError("hit on a collected blob");
+
+        // --- 6. Blobs missing from the index age by mtime ---
+        String unindexed = OCIImageBuilder.writeBlob("{\"c\":3}", store.blobs);
+        store.gc(Duration.ofDays(1));
+        if (!store.contains(unindexed)) throw new AssertionError("fresh unindexed blob collected");
+        Files.setLastModifiedTime(store.path(unindexed), FileTime.fromMillis(0));
+        store.gc(Duration.ofDays(1));
+        if (store.contains(unindexed)) throw new AssertionError("stale unindexed blob kept");
+
+        // --- 7. GC deletes cached JREs unused for as long, by their last use rather than their mtime ---
+        Path stale = Files.createDirectories(Paths.get(storeDir, "jre/stale/bin"));
+        Files.writeString(stale.resolve("java"), "12345");
+        Files.setLastModifiedTime(Files.createFile(Paths.get(storeDir, "jre/stale.used")), FileTime.fromMillis(0));
+        Path fresh = Files.createDirectories(Paths.get(storeDir, "jre/fresh"));
+        Files.setLastModifiedTime(fresh, FileTime.fromMillis(0));
+        Files.createFile(Paths.get(storeDir, "jre/fresh.used"));
+        if (store.gc(Duration.ofDays(1)) != 5) throw new AssertionError("stale JRE not freed");
+        if (Files.exists(stale.getParent()) || Files.exists(Paths.get(storeDir, "jre/stale.used"))) {
+            throw new AssertionError("stale JRE kept");
+        }
+        if (!Files.exists(fresh)) throw new AssertionError("recently used JRE collected");
+
+        System.out.println("All BlobStore assertions passed!");
+        LayerCacheTest.cleanDir(storeDir);
+        LayerCacheTest.cleanDir(outA);
+        LayerCacheTest.cleanDir(outB);
+    }
+}
@@ -0,0 +1,121 @@
+package com.assense.OCIImageBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of one build, written as JSON by {@code --metrics}: wall time per stage, bytes read,
+ * written, downloaded and uploaded, peak heap, and how often the layer cache and incremental
+ * rebuilds avoided work.
+ * <p>
+ * The static build helpers record into {@link #current()}, which threads started during the
+ * build inherit from the thread that called {@link #start()}, so the per-build pools need no
+ * extra parameter. Outside a started build it is a shared instance that is never reported. Stages
+ * of different layers run concurrently, so their times add up to more than the total.
+ */
+public final class BuildMetrics {
+    private static final InheritableThreadLocal<BuildMetrics> CURRENT = new InheritableThreadLocal<>();
+    private static final BuildMetrics NONE = new BuildMetrics();
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> stageNanos = Collections.synchronizedMap(new LinkedHashMap<>());
+    /** Source file content archived into layers, including content copied from a previous layer blob. */
+    final AtomicLong bytesRead = new AtomicLong();
+    /** Blob bytes written by this build, including blobs that turned out to exist already. */
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong bytesDownloaded = new AtomicLong();
+    final AtomicLong bytesUploaded = new AtomicLong();
+    final AtomicLong cacheHits = new AtomicLong(), cacheMisses = new AtomicLong();
+    /** Files of incrementally rebuilt layers copied from the previous blob, and read from the file system. */
+    final AtomicLong filesReused = new AtomicLong(), filesRead = new AtomicLong();
+    private long wallNanos = -1, peakHeap = -1;
+
+    private BuildMetrics() {
+    }
+
+    /**
+     * Starts collecting for a build on the calling thread and the threads it starts. Peak heap
+     * usage is reset JVM-wide: with concurrent builds it is the JVM's peak since the latest start.
+     */
+    public static BuildMetrics start() {
+        BuildMetrics metrics = new BuildMetrics();
+        for (MemoryPoolMXBean pool : heapPools()) pool.resetPeakUsage();
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    /** The metrics of the build running on this thread. */
+    public static BuildMetrics current() {
+        BuildMetrics metrics = CURRENT.get();
+        return metrics != null ? metrics : NONE;
+    }
+
+    /** Runs work as (part of) stage, adding its wall time to the stage's. */
+    public <T> T time(String stage, Callable<T> work) throws Exception {
+        if (this == NONE) return work.call();
+        long start = System.nanoTime();
+        try {
+            return work.call();
+        } finally {
+            stageNanos.merge(stage, System.nanoTime() - start, Long::sum);
+        }
+    }
+
+    /** Ends the build: records total wall time and peak heap and stops collecting on this thread. */
+    public void finish() {
+        if (this == NONE) return;
+        if (wallNanos < 0) {
+            wallNanos = System.nanoTime() - startNanos;
+            // the sum of the pools' individual peaks, which bounds the actual peak from above
+            peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools()) peakHeap += pool.getPeakUsage().getUsed();
+        }
+        if (CURRENT.get() == this) CURRENT.remove();
+    }
+
+    public String json() {
+        StringBuilder stages = new StringBuilder();
+        synchronized (stageNanos) {
+            for (Map.Entry<String, Long> e : stageNanos.entrySet()) {
+                if (!stages.isEmpty()) stages.append(",\n");
+                stages.append("    ").append(Json.quote(e.getKey())).append(": ").append(millis(e.getValue()));
+            }
+        }
+        return """
+        {
+          "wallMillis": %s,
+          "stageMillis": {
+        %s
+          },
+          "bytesRead": %d,
+          "bytesWritten": %d,
+          "bytesDownloaded": %d,
+          "bytesUploaded": %d,
+          "peakHeapBytes": %d,
+          "layerCache": { "hits": %d, "misses": %d, "hitRate": %s },
+          "incremental": { "filesReused": %d, "filesRead": %d, "reuseRate": %s }
+        }
+        """.formatted(millis(wallNanos), stages, bytesRead.get(), bytesWritten.get(), bytesDownloaded.get(),
+                bytesUploaded.get(), peakHeap, cacheHits.get(), cacheMisses.get(), rate(cacheHits, cacheMisses),
+                filesReused.get(), filesRead.get(), rate(filesReused, filesRead));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    // share of hits, or null if there was nothing to hit
+    private static String rate(AtomicLong hits, AtomicLong misses) {
+        long total = hits.get() + misses.get();
+        return total == 0 ? "null" : String.format(Locale.ROOT, "%.4f", (double) hits.get() / total);
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP).toList();
+    }
+}
@@ -0,0 +1,81 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+public class BuildMetricsTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-metrics-work";
+        RegistryClientTest.cleanDir(workDir);
+        Path work = Files.createDirectories(Paths.get(workDir));
+        Files.createDirectories(work.resolve("base/etc"));
+        Files.writeString(work.resolve("base/etc/hello"), "hi");
+        Files.createDirectories(work.resolve("jre/bin"));
+        Files.writeString(work.resolve("jre/bin/java"), "java");
+        Path app = Files.createDirectories(work.resolve("app/m"));
+        for (int i = 0; i < 10; i++) Files.writeString(app.resolve("C" + i + ".class"), "class " + i);
+
+        try (TestRegistry registry = new TestRegistry()) {
+            byte[] baseLayer = RegistryClientTest.gzipTar(work.resolve("base"));
+            String layer = registry.putBlob(baseLayer);
+            String config = registry.putBlob("{ \"rootfs\": { \"type\": \"layers\", \"diff_ids\": [] } }".getBytes());
+            registry.putManifest("base", "latest", RegistryClient.OCI_MANIFEST, """
+                    { "schemaVersion": 2, "mediaType": "application/vnd.oci.image.manifest.v1+json",
+                      "config": { "mediaType": "application/vnd.oci.image.config.v1+json", "digest": "%s" },
+                      "layers": [ { "mediaType": "application/vnd.oci.image.layer.v1.tar+gzip", "digest": "%s" } ] }
+                    """.formatted(config, layer));
+            String[] build = {"--base", registry.host() + "/base:latest", "--jre", work.resolve("jre").toString(),
+                    "--app", work.resolve("app").toString(), "--module", "m", "--out", work.resolve("out").toString(),
+                    "--cache-dir", work.resolve("cache").toString(), "--reproducible",
+                    "--metrics", work.resolve("metrics.json").toString()};
+
+            // --- 1. A cold build misses the cache, reads the sources and downloads the base ---
+            OCIImageBuilder.main(build);
+            Map<String, Object> cold = Json.parseObject(Files.readString(work.resolve("metrics.json")));
+            Map<String, Object> stages = Json.object(cold, "stageMillis");
+            for (String stage : List.of("app layer application", "base layer linux/amd64", "jre layer linux/amd64",
+                    "manifests", "output")) {
+                if (!stages.containsKey(stage)) throw new AssertionError("Missing stage " + stage + ": " + stages);
+            }
+            if (Json.number(cold, "bytesRead") != 10 * "class 0".length() + "java".length()) {
+                throw new AssertionError("bytesRead: " + cold.get("bytesRead"));
+            }
+            if (Json.number(cold, "bytesDownloaded") != baseLayer.length) {
+                throw new AssertionError("bytesDownloaded: " + cold.get("bytesDownloaded"));
+            }
+            if (Json.number(cold, "bytesWritten") <= 0 || Json.number(cold, "peakHeapBytes") <= 0) {
+                throw new AssertionError("Nothing written or no heap: " + cold);
+            }
+            if (Json.number(Json.object(cold, "layerCache"), "misses") != 3) throw new AssertionError("Misses: " + cold);
+
+            // --- 2. An unchanged rebuild only hits the cache ---
+            OCIImageBuilder.main(build);
+            Map<String, Object> warm = Json.parseObject(Files.readString(work.resolve("metrics.json")));
+            Map<String, Object> cache = Json.object(warm, "layerCache");
+            if (Json.number(cache, "hits") != 3 || !Double.valueOf(1.0).equals(cache.get("hitRate"))) {
+                throw new AssertionError("Warm cache: " + cache);
+            }
+            if (Json.number(warm, "bytesRead") != 0 || Json.number(warm, "bytesDownloaded") != 0) {
+                throw new AssertionError("Warm build read or downloaded: " + warm);
+            }
+
+            // --- 3. One changed class: the app layer is rebuilt incrementally ---
+            Files.writeString(app.resolve("C3.class"), "changed");
+            Files.setLastModifiedTime(app.resolve("C3.class"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+            OCIImageBuilder.main(build);
+            Map<String, Object> incremental = Json.object(
+                    Json.parseObject(Files.readString(work.resolve("metrics.json"))), "incremental");
+            if (Json.number(incremental, "filesRead") != 1 || Json.number(incremental, "filesReused") != 9) {
+                throw new AssertionError("Incremental: " + incremental);
+            }
+        }
+
+        // --- 4. Outside a build nothing is collected ---
+        BuildMetrics none = BuildMetrics.current();
+        if (none != BuildMetrics.current() || none.time("x", () -> 42) != 42) throw new AssertionError("No-op metrics");
+
+        System.out.println("All BuildMetrics assertions passed!");
+        RegistryClientTest.cleanDir(workDir);
+    }
+}
@@ -0,0 +1,166 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates a dynamic AppCDS archive for the image's entrypoint with a training run of the app, so
+ * that containers map pre-parsed classes of the app and its modules instead of loading them cold.
+ * <p>
+ * The training run uses the image's JRE on the build host, so it is only possible for platforms
+ * that JRE runs on here. A JRE built by jlink without {@code --generate-cds-archive} has no
+ * default CDS archive to extend, so a base archive is dumped first. The JVM accepts archives
+ * from another JRE and module path location (JDK 19 and later), but checks JAR sizes and
+ * mtimes; with a fixed layer mtime the app is therefore staged with that mtime first. The JVM
+ * ignores an archive that does not match, so a mismatch costs startup time, not correctness.
+ */
+public class CdsTrainer {
+    /** Directory of the archives in the image. */
+    static final String TARGET_DIR = "/opt/cds";
+    static final String BASE_ARCHIVE = "base.jsa";
+    static final String APP_ARCHIVE = "app.jsa";
+    static final int TIMING_RUNS = 3;
+
+    private final Path jreDir;
+    private final Path appDir;
+    private final String mainClass;
+    private final List<String> trainingArgs;
+    private final Duration timeout;
+    private final Long epoch;
+
+    /**
+     * @param jreDir       JRE of the image
+     * @param appDir       app directory of the image (/opt/app)
+     * @param mainClass    {@code module/class} launched by the entrypoint
+     * @param trainingArgs arguments for the training run, which should exercise startup and exit
+     * @param timeout      time after which the training run is asked to exit
+     * @param epoch        mtime of the app files in the image, or null if they keep their own
+     */
+    public CdsTrainer(Path jreDir, Path appDir, String mainClass, List<String> trainingArgs, Duration timeout,
+                      Long epoch) {
+        this.jreDir = jreDir;
+        this.appDir = appDir;
+        this.mainClass = mainClass;
+        this.trainingArgs = List.copyOf(trainingArgs);
+        this.timeout = timeout;
+        this.epoch = epoch;
+    }
+
+    /** Whether a JRE for platform can run on this host, and thus do the training run. */
+    static boolean canRun(Platform platform) {
+        String arch = switch (System.getProperty("os.arch")) {
+            case "amd64", "x86_64" -> "amd64";
+            case "aarch64" -> "arm64";
+            default -> System.getProperty("os.arch");
+        };
+        return platform.os().equals(System.getProperty("os.name").toLowerCase(Locale.ROOT))
+                && platform.architecture().equals(arch);
+    }
+
+    /** Archive file names the training run creates, base first; a JRE with a default archive needs no base. */
+    List<String> archives() {
+        return Files.exists(jreDir.resolve("lib/server/classes.jsa"))
+                ? List.of(APP_ARCHIVE) : List.of(BASE_ARCHIVE, APP_ARCHIVE);
+    }
+
+    /** The {@code -XX:SharedArchiveFile} option for the archives in dir (e.g. {@link #TARGET_DIR}). */
+    String sharedArchiveOption(String dir) {
+        StringJoiner files = new StringJoiner(":", "-XX:SharedArchiveFile=", "");
+        for (String archive : archives()) files.add(dir + "/" + archive);
+        return files.toString();
+    }
+
+    /** What determines the archive besides the JRE and app contents, for the cache key. */
+    String description() {
+        return mainClass + " " + String.join(" ", trainingArgs) + ",archives=" + archives();
+    }
+
+    /**
+     * Runs the training run and writes {@link #archives()} to outDir. Returns whether the app exited
+     * by itself, rather than being stopped at the timeout like a server; fails if it exited with an error.
+     */
+    public boolean train(Path outDir) throws Exception {
+        Path staged = epoch != null ? stageApp() : null;
+        try {
+            if (archives().contains(BASE_ARCHIVE)) {
+                run(List.of("-Xshare:dump", "-XX:SharedArchiveFile=" + outDir.resolve(BASE_ARCHIVE)), true, null);
+            }
+            List<String> args = new ArrayList<>();
+            if (archives().contains(BASE_ARCHIVE)) args.add("-XX:SharedArchiveFile=" + outDir.resolve(BASE_ARCHIVE));
+            args.add("-XX:ArchiveClassesAtExit=" + outDir.resolve(APP_ARCHIVE));
+            args.addAll(launchArgs(staged != null ? staged : appDir));
+            args.addAll(trainingArgs);
+            boolean exited = run(args, true, timeout);
+            if (!Files.exists(outDir.resolve(APP_ARCHIVE))) throw new IOException("Training run created no CDS archive");
+            return exited;
+        } finally {
+            if (staged != null) JREBuilder.deleteDir(staged.getParent());
+        }
+    }
+
+    /**
+     * Times the training run's command without and with the archives in dir, taking the fastest of
+     * {@link #TIMING_RUNS} each. Returns milliseconds {without, with}, or null if the app does not
+     * exit within the timeout. Only worth calling if {@link #train} found that it exits by itself.
+     */
+    public long[] measureStartup(Path dir) throws Exception {
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        Path staged = epoch != null ? stageApp() : null;
+        try {
+            for (int i = 0; i < TIMING_RUNS; i++) {
+                for (int cds = 0; cds < 2; cds++) {
+                    List<String> args = new ArrayList<>();
+                    if (cds == 1) args.add(sharedArchiveOption(dir.toString()));
+                    args.addAll(launchArgs(staged != null ? staged : appDir));
+                    args.addAll(trainingArgs);
+                    long start = System.nanoTime();
+                    if (!run(args, false, timeout)) return null;
+                    best[cds] = Math.min(best[cds], (System.nanoTime() - start) / 1_000_000);
+                }
+            }
+        } finally {
+            if (staged != null) JREBuilder.deleteDir(staged.getParent());
+        }
+        return best;
+    }
+
+    private List<String> launchArgs(Path app) {
+        return List.of("-p", app.toAbsolutePath().toString(), "-m", mainClass);
+    }
+
+    // Copy of the app, in a new temporary directory, with the mtime its layer records, which CDS
+    // validates JARs against
+    private Path stageApp() throws IOException {
+        Path staged = Files.createTempDirectory("oci-cds").resolve("app");
+        JREBuilder.copyTree(appDir, staged, FileTime.from(epoch, TimeUnit.SECONDS));
+        return staged;
+    }
+
+    // Runs the JRE's java; true if it exited by itself within timeout (null: no limit). Fails if
+    // it exited with an error, but not when stopped at the timeout, where the exit code is the signal's
+    private boolean run(List<String> args, boolean showOutput, Duration timeout) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(jreDir.resolve("bin/java").toString());
+        cmd.addAll(args);
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        if (showOutput) pb.inheritIO();
+        else pb.redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process p = pb.start();
+        if (timeout == null) {
+            if (p.waitFor() != 0) throw new IOException("Command failed: " + String.join(" ", cmd));
+            return true;
+        }
+        if (p.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            if (p.exitValue() != 0) throw new IOException("Command failed: " + String.join(" ", cmd));
+            return true;
+        }
+        // SIGTERM lets the JVM exit normally, which is when the archive is written
+        p.destroy();
+        if (!p.waitFor(30, TimeUnit.SECONDS)) p.destroyForcibly().waitFor();
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.*;
+
+public class CdsTrainerTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-cds-work";
+        String moduleName = "cds.test";
+        LayerCacheTest.cleanDir(workDir);
+        Path work = Files.createDirectories(Paths.get(workDir));
+        Path src = Files.createDirectories(work.resolve("src/" + moduleName.replace('.', '/')));
+        Files.writeString(work.resolve("src/module-info.java"), "module " + moduleName + " { requires java.logging; }");
+        Files.writeString(src.resolve("HelloWorld.java"), "package " + moduleName + "; public class HelloWorld {"
+                + " public static void main(String[] args) throws Exception { java.util.logging.Logger.getLogger(\"t\").info(\"hi\");"
+                + " if (args.length > 0 && args[0].equals(\"fail\")) System.exit(3);"
+                + " if (args.length > 0) Thread.sleep(Long.MAX_VALUE); } }");
+        JREBuilderTest.runCmd("javac", "-d", work.resolve("classes").toString(),
+                work.resolve("src/module-info.java").toString(), src.resolve("HelloWorld.java").toString());
+        Path app = Files.createDirectories(work.resolve("app"));
+        JREBuilderTest.runCmd("jar", "--create", "--file", app.resolve(moduleName + ".jar").toString(),
+                "-C", work.resolve("classes").toString(), ".");
+        Path jre = work.resolve("jre");
+        JREBuilder.build(app.toString(), moduleName, jre.toString());
+
+        if (!CdsTrainer.canRun(Platform.LINUX_AMD64) && !CdsTrainer.canRun(new Platform("linux", "arm64", null))) {
+            System.out.println("Skipping CdsTrainer assertions: no training run on this host");
+            LayerCacheTest.cleanDir(workDir);
+            return;
+        }
+
+        // --- 1. Training run with a fixed layer mtime: a base archive for the jlinked JRE, then the app's ---
+        CdsTrainer trainer = new CdsTrainer(jre, app, OCIImageBuilder.mainClass(moduleName), List.of(),
+                Duration.ofSeconds(60), 0L);
+        if (!trainer.archives().equals(List.of(CdsTrainer.BASE_ARCHIVE, CdsTrainer.APP_ARCHIVE))) {
+            throw new AssertionError("Archives: " + trainer.archives());
+        }
+        Path archives = Files.createDirectories(work.resolve("cds"));
+        if (!trainer.train(archives)) throw new AssertionError("Training run reported as stopped");
+        for (String name : trainer.archives()) {
+            if (!Files.exists(archives.resolve(name))) throw new AssertionError("Missing " + name);
+        }
+
+        // --- 2. The archive serves the app's classes to an app whose files carry the layer mtime ---
+        Path image = Files.createDirectories(work.resolve("image-app"));
+        Files.copy(app.resolve(moduleName + ".jar"), image.resolve(moduleName + ".jar"));
+        Files.setLastModifiedTime(image.resolve(moduleName + ".jar"), FileTime.fromMillis(0));
+        ProcessBuilder pb = new ProcessBuilder(jre.resolve("bin/java").toString(), "-Xshare:on",
+                trainer.sharedArchiveOption(archives.toString()), "-Xlog:class+load=info",
+                "-p", image.toString(), "-m", OCIImageBuilder.mainClass(moduleName)).redirectErrorStream(true);
+        Process p = pb.start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        p.getInputStream().transferTo(output);
+        if (p.waitFor() != 0 || !output.toString().contains(moduleName + ".HelloWorld source: shared objects file (top)")) {
+            throw new AssertionError("Archive not used:\n" + output);
+        }
+
+        // --- 3. The layer holds the archives at /opt/cds and is cached on the layers it was trained on ---
+        BlobStore store = new BlobStore(work.resolve("cache"));
+        LayerCache cache = new LayerCache(store, false);
+        List<Layer> trainedOn = List.of(OCIImageBuilder.buildDirLayer(cache, store.blobs, app.toString(), "/opt/app", 0L,
+                Layer.Compression.NONE));
+        Layer layer = OCIImageBuilder.buildCdsLayer(cache, store.blobs, trainer, trainedOn, 0L, Layer.Compression.NONE);
+        Map<String, byte[]> entries = ImageArchiveTest.readEntries(store.path(layer.digest()));
+        if (!entries.keySet().containsAll(Set.of("opt/cds/base.jsa", "opt/cds/app.jsa"))) {
+            throw new AssertionError("Layer entries: " + entries.keySet());
+        }
+        String key = cache.key("cds " + trainedOn.get(0).digest() + " " + trainer.description()
+                + ",epoch=0,compression=NONE");
+        if (!cache.fetch(key).orElseThrow(() -> new AssertionError("CDS layer not cached")).equals(layer)) {
+            throw new AssertionError("Cached CDS layer differs");
+        }
+
+        // --- 4. The entrypoint loads the archives from the layer ---
+        List<String> entrypoint = OCIImageBuilder.entrypoint(moduleName, trainer.sharedArchiveOption(CdsTrainer.TARGET_DIR));
+        if (!entrypoint.contains("-XX:SharedArchiveFile=/opt/cds/base.jsa:/opt/cds/app.jsa")) {
+            throw new AssertionError("Entrypoint: " + entrypoint);
+        }
+
+        // --- 5. A training run that does not exit, like a server's, is stopped and reported as such ---
+        CdsTrainer server = new CdsTrainer(jre, app, OCIImageBuilder.mainClass(moduleName), List.of("serve"),
+                Duration.ofSeconds(3), 0L);
+        Path serverArchives = Files.createDirectories(work.resolve("cds-server"));
+        if (server.train(serverArchives)) throw new AssertionError("Stopped training run reported as exited");
+        if (!Files.exists(serverArchives.resolve(CdsTrainer.APP_ARCHIVE))) throw new AssertionError("No archive at stop");
+
+        // --- 6. A training run that exits with an error fails, rather than being timed and archived ---
+        CdsTrainer failing = new CdsTrainer(jre, app, OCIImageBuilder.mainClass(moduleName), List.of("fail"),
+                Duration.ofSeconds(60), 0L);
+        try {
+            failing.train(Files.createDirectories(work.resolve("cds-failing")));
+            throw new AssertionError("Failed training run accepted");
+        } catch (java.io.IOException expected) {
+            // exit code 3
+        }
+
+        System.out.println("All CdsTrainer assertions passed!");
+        LayerCacheTest.cleanDir(workDir);
+    }
+}
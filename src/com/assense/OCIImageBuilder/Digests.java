@@ -0,0 +1,107 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * SHA-256 of byte arrays and files, hex-encoded as in blob names.
+ * <p>
+ * Files are hashed from the page cache through memory-mapped windows, so no read copies them into
+ * the heap first and their size is not limited by an array. Files below {@link #MAP_THRESHOLD}
+ * are read instead, as mapping costs more than copying them. The JDK's SHA-256 is used throughout,
+ * whose compression function HotSpot replaces by the CPU's SHA instructions where it has them.
+ * One SHA-256 cannot be split across threads, so several files are hashed in parallel instead,
+ * one per thread.
+ */
+public final class Digests {
+    static final long MAP_THRESHOLD = 1 << 20;
+    static final long MAP_WINDOW = 1 << 26;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private Digests() {
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Lowercase hex of bytes, e.g. a digest, without the per-byte strings of a formatter. */
+    public static String hex(byte[] bytes) {
+        byte[] chars = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars, StandardCharsets.ISO_8859_1);
+    }
+
+    /** SHA-256 of data, as hex. */
+    public static String sha256(byte[] data) {
+        return hex(sha256().digest(data));
+    }
+
+    /** SHA-256 of a file's content, as hex. */
+    public static String sha256(Path file) throws IOException {
+        MessageDigest md = sha256();
+        update(md, file);
+        return hex(md.digest());
+    }
+
+    /** Feeds a file's content into md. */
+    public static void update(MessageDigest md, Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fc.size();
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size + 1, OCIImageBuilder.BUFFER_SIZE));
+                while (fc.read(buffer.clear()) > 0) md.update(buffer.flip());
+                return;
+            }
+            // unmapped by the GC; the windows bound how much is mapped at once
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                md.update(fc.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+            }
+            if (fc.size() != size) throw new IOException("File changed while hashing: " + file);
+        } catch (InternalError e) {
+            // access to a mapped page the file was truncated below
+            throw new IOException("File changed while hashing: " + file, e);
+        }
+    }
+
+    /** SHA-256 of each file, as hex in the order of files, hashed in parallel on pool. */
+    public static List<String> sha256(List<Path> files, ExecutorService pool) throws Exception {
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (Path file : files) tasks.add(() -> sha256(file));
+        return OCIImageBuilder.runAll(pool, tasks);
+    }
+
+    /**
+     * Checks in parallel that the blobs of dir named by digests (hex, as in blobs/sha256) have that
+     * content. Returns the digests of missing and corrupt blobs.
+     */
+    public static List<String> verify(Path dir, Collection<String> digests, ExecutorService pool) throws Exception {
+        List<String> expected = List.copyOf(digests);
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (String digest : expected) {
+            Path blob = dir.resolve(digest);
+            tasks.add(() -> Files.isRegularFile(blob) && sha256(blob).equals(digest));
+        }
+        List<Boolean> intact = OCIImageBuilder.runAll(pool, tasks);
+        List<String> bad = new ArrayList<>();
+        for (int i = 0; i < expected.size(); i++) {
+            if (!intact.get(i)) bad.add(expected.get(i));
+        }
+        return bad;
+    }
+}
@@ -0,0 +1,78 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class DigestsTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-digests";
+        LayerCacheTest.cleanDir(workDir);
+        Path work = Files.createDirectories(Paths.get(workDir));
+
+        // --- 1. Hex of known vectors ---
+        check(Digests.sha256(new byte[0]), "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", "empty");
+        check(Digests.sha256("abc".getBytes(StandardCharsets.US_ASCII)),
+                "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", "abc");
+        check(Digests.hex(new byte[] {0, 1, 0x7f, (byte) 0x80, (byte) 0xff}), "00017f80ff", "hex");
+
+        // --- 2. Read and mapped files hash like their bytes, also across map windows ---
+        Random random = new Random(1);
+        List<Path> files = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (long size : new long[] {0, 1, OCIImageBuilder.BUFFER_SIZE, Digests.MAP_THRESHOLD - 1, Digests.MAP_THRESHOLD,
+                Digests.MAP_WINDOW + 12345}) {
+            byte[] content = new byte[(int) size];
+            random.nextBytes(content);
+            Path file = Files.write(work.resolve("file-" + size), content);
+            files.add(file);
+            expected.add(Digests.sha256(content));
+            check(Digests.sha256(file), expected.get(expected.size() - 1), "file of " + size + " bytes");
+        }
+
+        // --- 3. update continues a digest, so content can follow other input ---
+        MessageDigest md = Digests.sha256();
+        md.update("prefix".getBytes(StandardCharsets.US_ASCII));
+        Digests.update(md, files.get(3));
+        MessageDigest reference = Digests.sha256();
+        reference.update("prefix".getBytes(StandardCharsets.US_ASCII));
+        reference.update(Files.readAllBytes(files.get(3)));
+        check(Digests.hex(md.digest()), Digests.hex(reference.digest()), "continued digest");
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            // --- 4. Parallel hashing keeps the order of the files ---
+            if (!Digests.sha256(files, pool).equals(expected)) throw new AssertionError("parallel digests differ");
+
+            // --- 5. verify reports corrupt and missing blobs only ---
+            Path blobs = Files.createDirectories(work.resolve("blobs"));
+            String good = OCIImageBuilder.writeBlob("{\"good\":true}", blobs);
+            String bad = OCIImageBuilder.writeBlob("{\"bad\":true}", blobs);
+            Files.writeString(blobs.resolve(bad), "{\"bad\":false}");
+            String missing = Digests.sha256("gone".getBytes(StandardCharsets.US_ASCII));
+            List<String> failed = Digests.verify(blobs, List.of(good, bad, missing), pool);
+            if (!failed.equals(List.of(bad, missing))) throw new AssertionError("verify reported " + failed);
+
+            // --- 6. The blob store deletes corrupt blobs and keeps intact ones ---
+            BlobStore store = new BlobStore(work.resolve("store"));
+            String intact = OCIImageBuilder.writeBlob("{\"intact\":true}", store.blobs);
+            String corrupt = OCIImageBuilder.writeBlob("{\"corrupt\":true}", store.blobs);
+            store.record(Map.of(intact, "application/json", corrupt, "application/json"));
+            Files.writeString(store.path(corrupt), "{\"corrupt\":!!!!}");
+            if (!store.verify(pool).equals(List.of(corrupt))) throw new AssertionError("store did not find the corrupt blob");
+            if (store.contains(corrupt) || !store.contains(intact)) throw new AssertionError("wrong blob deleted");
+            if (!store.entries().keySet().equals(Set.of(intact))) throw new AssertionError("index: " + store.entries());
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println("All Digests assertions passed!");
+        LayerCacheTest.cleanDir(workDir);
+    }
+
+    private static void check(String actual, String expected, String what) {
+        if (!actual.equals(expected)) throw new AssertionError(what + ": expected " + expected + " but got " + actual);
+    }
+}
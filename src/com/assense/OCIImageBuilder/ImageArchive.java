@@ -0,0 +1,119 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Writes an image as one tar archive instead of a layout directory, loadable as-is with
+ * {@code podman load}, {@code docker load} or an {@code oci-archive:} reference.
+ * <p>
+ * The archive holds an OCI image layout ({@code oci-layout}, {@code index.json},
+ * {@code blobs/sha256/...}); the docker-archive format adds the {@code manifest.json} read by
+ * {@code docker load}, pointing at the same blob entries (the layout written by
+ * {@code docker save} since Docker 25). Blobs are appended from the blob directory as soon as
+ * they are produced, each exactly once, so the archive is the only copy written for the output.
+ * It is written to a temporary file next to the target and moved into place when complete.
+ */
+public class ImageArchive implements Closeable {
+    /** Output format selected with {@code --format}. */
+    public enum Format {
+        OCI, OCI_ARCHIVE, DOCKER_ARCHIVE;
+
+        public static Format parse(String name) {
+            return switch (name) {
+                case "oci" -> OCI;
+                case "oci-archive" -> OCI_ARCHIVE;
+                case "docker-archive" -> DOCKER_ARCHIVE;
+                default -> throw new IllegalArgumentException("Unsupported format: " + name
+                        + " (use oci, oci-archive or docker-archive)");
+            };
+        }
+    }
+
+    private final Path target;
+    private final Path tmp;
+    private final Path blobDir;
+    private final OutputStream out;
+    private final TarWriter tar;
+    private final long mtime;
+    private final Set<String> written = new HashSet<>();
+    private boolean finished;
+
+    /**
+     * @param target  archive file to create
+     * @param blobDir directory the blobs are read from, named by hex digest
+     * @param epoch   mtime (epoch seconds) for all entries, or null for the current time
+     */
+    public ImageArchive(Path target, Path blobDir, Long epoch) throws IOException {
+        this.target = target;
+        this.blobDir = blobDir;
+        Path dir = target.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        this.tmp = dir.resolve("." + target.getFileName() + "-" + UUID.randomUUID() + ".tmp");
+        this.out = new BufferedOutputStream(Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW),
+                OCIImageBuilder.BUFFER_SIZE);
+        this.mtime = epoch != null ? epoch : System.currentTimeMillis() / 1000;
+        this.tar = new TarWriter(out, epoch);
+        tar.addFile("oci-layout", "{ \"imageLayoutVersion\": \"1.0.0\" }\n".getBytes(StandardCharsets.UTF_8), mtime);
+        tar.addDirectory("blobs", mtime);
+        tar.addDirectory("blobs/sha256", mtime);
+    }
+
+    /** Appends a blob (hex digest) unless it is already in the archive; safe to call from several threads. */
+    public synchronized void addBlob(String digest) throws IOException {
+        if (finished) throw new IllegalStateException("Archive already finished");
+        if (written.add(digest)) tar.addFile("blobs/sha256/" + digest, blobDir.resolve(digest), mtime);
+    }
+
+    /**
+     * Appends the remaining blobs, {@code index.json} and, if given, the docker {@code manifest.json},
+     * then moves the archive into place.
+     */
+    public synchronized void finish(Collection<String> digests, String indexJson, String dockerManifestJson)
+            throws IOException {
+        for (String digest : digests) addBlob(digest);
+        tar.addFile("index.json", indexJson.getBytes(StandardCharsets.UTF_8), mtime);
+        if (dockerManifestJson != null) {
+            tar.addFile("manifest.json", dockerManifestJson.getBytes(StandardCharsets.UTF_8), mtime);
+        }
+        tar.finish();
+        out.close();
+        finished = true;
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * The {@code manifest.json} of a docker-archive for one image manifest, with its config and
+     * layers referenced by their blob entries.
+     */
+    static String dockerManifestJson(String configDigest, List<Layer> layers, String repoTag) {
+        StringBuilder paths = new StringBuilder();
+        for (Layer l : layers) {
+            if (!paths.isEmpty()) paths.append(", ");
+            paths.append(Json.quote("blobs/sha256/" + l.digest()));
+        }
+        return """
+        [
+          {
+            "Config": %s,
+            "RepoTags": [%s],
+            "Layers": [%s]
+          }
+        ]
+        """.formatted(Json.quote("blobs/sha256/" + configDigest), repoTag != null ? Json.quote(repoTag) : "", paths);
+    }
+
+    /** Discards the archive unless it was finished. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (finished) return;
+        finished = true;
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class ImageArchiveTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-archive-work";
+        RegistryClientTest.cleanDir(workDir);
+        Path work = Files.createDirectories(Paths.get(workDir));
+        Files.createDirectories(work.resolve("base/etc"));
+        Files.writeString(work.resolve("base/etc/hello"), "hi");
+        Files.createDirectories(work.resolve("jre/bin"));
+        Files.writeString(work.resolve("jre/bin/java"), "java");
+        Files.createDirectories(work.resolve("app/m"));
+        Files.writeString(work.resolve("app/m/A.class"), "cls");
+
+        try (TestRegistry registry = new TestRegistry()) {
+            String layer = registry.putBlob(RegistryClientTest.gzipTar(work.resolve("base")));
+            String config = registry.putBlob("{ \"rootfs\": { \"type\": \"layers\", \"diff_ids\": [\"sha256:x\"] } }".getBytes());
+            registry.putManifest("base", "latest", RegistryClient.OCI_MANIFEST, """
+                    { "schemaVersion": 2, "mediaType": "application/vnd.oci.image.manifest.v1+json",
+                      "config": { "mediaType": "application/vnd.oci.image.config.v1+json", "digest": "%s" },
+                      "layers": [ { "mediaType": "application/vnd.oci.image.layer.v1.tar+gzip", "digest": "%s" } ] }
+                    """.formatted(config, layer));
+
+            // --- 1. docker-archive without cache: one file, no layout, no leftover blobs ---
+            Path archive = work.resolve("out/image.tar");
+            OCIImageBuilder.main(new String[]{
+                    "--base", registry.host() + "/base:latest", "--jre", work.resolve("jre").toString(),
+                    "--app", work.resolve("app").toString(), "--module", "m", "--reproducible", "--no-cache",
+                    "--format", "docker-archive", "--tag", "example/app:1.0", "--out", archive.toString()});
+            try (var files = Files.list(archive.getParent())) {
+                List<Path> left = files.toList();
+                if (!left.equals(List.of(archive))) throw new AssertionError("Expected only the archive, found " + left);
+            }
+
+            // --- 2. Every blob is in the archive once, under its digest ---
+            Map<String, byte[]> entries = readEntries(archive);
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                if (e.getKey().startsWith("blobs/sha256/") && e.getValue() != null) {
+                    String digest = e.getKey().substring("blobs/sha256/".length());
+                    if (!Digests.sha256(e.getValue()).equals(digest)) throw new AssertionError("Bad blob " + digest);
+                }
+            }
+            for (String name : List.of("oci-layout", "index.json", "manifest.json")) {
+                if (!entries.containsKey(name)) throw new AssertionError("Missing " + name + " in " + entries.keySet());
+            }
+
+            // --- 3. manifest.json points at the config and layers of the OCI manifest ---
+            Object docker = ((List<?>) Json.parse(text(entries, "manifest.json"))).get(0);
+            if (!List.of("example/app:1.0").equals(Json.array(docker, "RepoTags"))) throw new AssertionError("RepoTags: " + docker);
+            Object tagged = Json.array(Json.parseObject(text(entries, "index.json")), "manifests").get(0);
+            Map<String, Object> manifest = Json.parseObject(text(entries, blobEntry(Json.string(tagged, "digest"))));
+            if (!Json.string(docker, "Config").equals(blobEntry(Json.string(Json.object(manifest, "config"), "digest")))) {
+                throw new AssertionError("Config mismatch");
+            }
+            List<Object> layers = Json.array(docker, "Layers");
+            List<Object> descriptors = Json.array(manifest, "layers");
+            if (layers.size() != 3) throw new AssertionError("Expected 3 layers, got " + layers);
+            for (int i = 0; i < layers.size(); i++) {
+                String path = (String) layers.get(i);
+                if (!path.equals(blobEntry(Json.string(descriptors.get(i), "digest"))) || !entries.containsKey(path)) {
+                    throw new AssertionError("Layer " + i + " not in archive: " + path);
+                }
+            }
+
+            // --- 4. oci-archive through the blob store is identical to the layout, minus manifest.json ---
+            Path cacheDir = work.resolve("cache");
+            Path ociArchive = work.resolve("image-oci.tar");
+            Path layoutDir = work.resolve("layout");
+            for (String[] output : List.of(new String[]{"oci-archive", ociArchive.toString()}, new String[]{"oci", layoutDir.toString()})) {
+                OCIImageBuilder.main(new String[]{
+                        "--base", registry.host() + "/base:latest", "--jre", work.resolve("jre").toString(),
+                        "--app", work.resolve("app").toString(), "--module", "m", "--reproducible",
+                        "--cache-dir", cacheDir.toString(), "--format", output[0], "--out", output[1]});
+            }
+            Map<String, byte[]> oci = readEntries(ociArchive);
+            if (oci.containsKey("manifest.json")) throw new AssertionError("manifest.json in oci-archive");
+            if (!text(oci, "index.json").equals(Files.readString(layoutDir.resolve("index.json")))) {
+                throw new AssertionError("index.json differs from layout");
+            }
+            try (var blobs = Files.list(layoutDir.resolve("blobs/sha256"))) {
+                for (Path blob : blobs.toList()) {
+                    if (!Arrays.equals(oci.get(blobEntry("sha256:" + blob.getFileName())), Files.readAllBytes(blob))) {
+                        throw new AssertionError("Blob differs from layout: " + blob.getFileName());
+                    }
+                }
+            }
+        }
+
+        System.out.println("All ImageArchive assertions passed!");
+        RegistryClientTest.cleanDir(workDir);
+    }
+
+    // Entry name -> content (null for directories); fails on duplicate entries
+    static Map<String, byte[]> readEntries(Path archive) throws IOException {
+        Map<String, byte[]> entries = new TreeMap<>();
+        try (InputStream in = Files.newInputStream(archive)) {
+            TarReader tar = new TarReader(in);
+            for (TarReader.Entry e; (e = tar.next()) != null; ) {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                tar.copyData(data);
+                byte[] content = e.type() == '5' ? null : Arrays.copyOf(data.toByteArray(), (int) e.size());
+                String name = e.name().endsWith("/") ? e.name().substring(0, e.name().length() - 1) : e.name();
+                if (entries.containsKey(name)) throw new AssertionError("Duplicate entry " + name);
+                entries.put(name, content);
+            }
+        }
+        return entries;
+    }
+
+    private static String blobEntry(String digest) {
+        return "blobs/sha256/" + digest.substring("sha256:".length());
+    }
+
+    private static String text(Map<String, byte[]> entries, String name) {
+        return new String(entries.get(name), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,274 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds images from {@link ImageSpec}s: the engine behind the command line, for use as a library.
+ * Failures are thrown, never turned into an exit of the JVM.
+ * <p>
+ * One instance can build any number of images, also concurrently from several threads, which is
+ * what batch mode does: the blob store and layer cache are shared, so a base or JRE layer built
+ * for one image is a cache hit for the next, and builds that need the same base or JRE layer at
+ * the same time wait for one of them to produce it instead of downloading or archiving it twice.
+ */
+public class ImageBuilder {
+    final BlobStore store;
+    private final LayerCache cache;
+    private final int jobs;
+    // layers being produced for a build, by what determines them, so that concurrent builds share the work
+    private final Map<String, CompletableFuture<List<Layer>>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param cacheDir         root of the blob store and layer cache, or null to write blobs to each output only
+     * @param cacheContentHash include file contents, not only metadata, in layer cache keys
+     * @param jobs             maximum number of layers one build builds concurrently
+     */
+    public ImageBuilder(Path cacheDir, boolean cacheContentHash, int jobs) throws IOException {
+        if (jobs < 1) throw new IllegalArgumentException("--jobs must be at least 1");
+        this.store = cacheDir != null ? new BlobStore(cacheDir) : null;
+        this.cache = store != null ? new LayerCache(store, cacheContentHash) : null;
+        this.jobs = jobs;
+    }
+
+    /** Builds the image, and writes its metrics if the spec asks for them. */
+    public ImageResult build(ImageSpec spec) throws Exception {
+        BuildMetrics metrics = BuildMetrics.start();
+        ImageResult result;
+        try {
+            result = build(spec, metrics);
+        } finally {
+            metrics.finish();
+        }
+        if (spec.metricsFile() != null) {
+            Files.writeString(spec.metricsFile(), metrics.json());
+            System.out.println("Build metrics written to " + spec.metricsFile().toAbsolutePath());
+        }
+        return result;
+    }
+
+    /** Deletes store blobs that no layout links to and that were unused for maxAge; see {@link BlobStore#gc}. */
+    public void collectGarbage(Duration maxAge) throws IOException {
+        if (store == null) return;
+        long freed = store.gc(maxAge);
+        System.out.println("Blob store GC freed " + freed + " bytes in " + store.root.toAbsolutePath());
+    }
+
+    /** Rehashes the store's blobs on jobs threads and deletes corrupt ones; see {@link BlobStore#verify}. */
+    public List<String> verifyStore() throws Exception {
+        if (store == null) return List.of();
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            List<String> corrupt = store.verify(pool);
+            for (String digest : corrupt) System.out.println("Deleted corrupt blob sha256:" + digest);
+            System.out.println("Blob store verified, " + corrupt.size() + " corrupt blob(s) in " + store.root.toAbsolutePath());
+            return corrupt;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private ImageResult build(ImageSpec spec, BuildMetrics metrics) throws Exception {
+        boolean layout = spec.format() == ImageArchive.Format.OCI;
+        Path OUT = spec.out();
+        Path BLOBS = OUT.resolve("blobs/sha256");
+        // Blobs are produced in the shared store, then hard-linked into the layout or appended to the
+        // archive. Without the cache they are written to the layout directly, or to a temporary directory
+        Path tmpBlobs = store == null && !layout
+                ? Files.createTempDirectory(Files.createDirectories(OUT.toAbsolutePath().getParent()), ".oci-blobs") : null;
+        Path blobDir = store != null ? store.blobs : layout ? BLOBS : tmpBlobs;
+        ImageArchive archive = null;
+        try {
+            if (layout) {
+                // Step 1: oci-layout
+                Files.createDirectories(BLOBS);
+                Files.writeString(OUT.resolve("oci-layout"),
+                        "{ \"imageLayoutVersion\": \"1.0.0\" }\n", StandardCharsets.UTF_8);
+            } else {
+                archive = new ImageArchive(OUT, blobDir, spec.layerEpoch());
+            }
+
+            // Steps 2-4 are independent until the config assembles their diff_ids, so build them concurrently,
+            // for all platforms at once
+            Long epoch = spec.layerEpoch();
+            String app = spec.appDir().toString(), base = spec.baseImage();
+            Layer.Compression compression = spec.compression();
+            List<Platform> platforms = List.copyOf(spec.platforms().keySet());
+            // a leftover base-layer.tar can only stand in for the base of a single-platform image
+            Path baseLayerTar = layout && platforms.size() == 1 ? OUT.resolve("base-layer.tar") : null;
+            String options = ",epoch=" + epoch + ",compression=" + compression;
+            List<Callable<List<Layer>>> tasks = new ArrayList<>();
+            // Step 4: App layers at /opt/app, dependencies below the application code; platform-independent,
+            // so built and hashed once for all manifests
+            List<AppLayering.Part> appParts = new AppLayering(spec.appDir(), spec.appLayers(), spec.moduleName()).plan();
+            for (AppLayering.Part part : appParts) {
+                if (appParts.size() > 1) System.out.println("App layer " + part.name() + ": " + part.files() + " files");
+                String key = "app " + spec.appDir().toAbsolutePath().normalize() + " " + spec.appLayers() + " "
+                        + spec.moduleName() + " " + part.name() + options;
+                tasks.add(() -> metrics.time("app layer " + part.name(), () -> shared(key, () -> List.of(
+                        OCIImageBuilder.buildDirLayer(cache, blobDir, app, "/opt/app", part.name(), part.include(),
+                                epoch, compression)))));
+            }
+            int platformTasks = appParts.size();
+            for (Platform platform : platforms) {
+                String jre = spec.platforms().get(platform).toString();
+                // Step 2: Base image layers, referenced verbatim or flattened into one; shared with concurrent
+                // builds unless a leftover base-layer.tar of this output stands in for it
+                String baseKey = "base " + base + " " + platform + " " + spec.preserveBaseLayers() + options
+                        + (baseLayerTar != null && Files.exists(baseLayerTar) ? " " + baseLayerTar : "");
+                tasks.add(() -> metrics.time("base layer " + platform, () -> shared(baseKey, () -> spec.preserveBaseLayers()
+                        ? OCIImageBuilder.downloadBaseLayersVerbatim(base, platform, blobDir)
+                        : List.of(OCIImageBuilder.buildBaseLayer(baseLayerTar, blobDir, cache, base, platform, compression)))));
+                // Step 3: JRE layer as /opt/jre, streamed straight into the blob store unless cached
+                String jreKey = "jre " + spec.platforms().get(platform).toAbsolutePath().normalize() + options;
+                tasks.add(() -> metrics.time("jre layer " + platform, () -> shared(jreKey, () -> List.of(
+                        OCIImageBuilder.buildDirLayer(cache, blobDir, jre, "/opt/jre", epoch, compression)))));
+            }
+            if (archive != null) {
+                // stream each layer into the archive as soon as it is done
+                ImageArchive target = archive;
+                tasks.replaceAll(task -> () -> {
+                    List<Layer> result = task.call();
+                    for (Layer l : result) target.addBlob(l.digest());
+                    return result;
+                });
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(jobs);
+            List<List<Layer>> built;
+            try {
+                built = OCIImageBuilder.runAll(pool, tasks);
+            } finally {
+                pool.shutdownNow();
+            }
+
+            // Steps 5-6: config and manifest per platform
+            Map<String, String> mediaTypes = new LinkedHashMap<>();
+            List<String> manifestDescriptors = new ArrayList<>();
+            Map<Platform, String> manifests = new LinkedHashMap<>();
+            Map<Platform, List<Layer>> platformLayers = new LinkedHashMap<>();
+            String taggedDigest = null, dockerManifest = null;
+            for (int p = 0; p < platforms.size(); p++) {
+                Platform platform = platforms.get(p);
+                List<Layer> layers = new ArrayList<>(built.get(platformTasks + 2 * p));
+                int jreAndApp = layers.size();
+                layers.addAll(built.get(platformTasks + 2 * p + 1));
+                for (List<Layer> appLayers : built.subList(0, platformTasks)) layers.addAll(appLayers);
+                String cdsOption = null;
+                if (spec.cds() && !CdsTrainer.canRun(platform)) {
+                    System.out.println("Skipping CDS for " + platform + ": its JRE cannot run on this host");
+                } else if (spec.cds()) {
+                    // Step 4b: AppCDS archive from a training run, on top as it changes with every app change
+                    CdsTrainer trainer = new CdsTrainer(spec.platforms().get(platform), spec.appDir(),
+                            OCIImageBuilder.mainClass(spec.moduleName()), spec.cdsTrainingArgs(),
+                            spec.cdsTrainingTimeout(), epoch);
+                    List<Layer> trainedOn = List.copyOf(layers.subList(jreAndApp, layers.size()));
+                    try {
+                        layers.add(metrics.time("cds layer " + platform, () ->
+                                OCIImageBuilder.buildCdsLayer(cache, blobDir, trainer, trainedOn, epoch, compression)));
+                        cdsOption = trainer.sharedArchiveOption(CdsTrainer.TARGET_DIR);
+                    } catch (IOException e) {
+                        // best effort: the image works the same without the archive
+                        System.out.println("Skipping CDS for " + platform + ": " + e.getMessage());
+                    }
+                }
+                List<String> command = OCIImageBuilder.entrypoint(spec.moduleName(), cdsOption);
+                String configDigest = metrics.time("manifests", () ->
+                        OCIImageBuilder.writeBlob(OCIImageBuilder.configJson(platform, layers, command), blobDir));
+                String manifestDigest = metrics.time("manifests", () -> OCIImageBuilder.writeBlob(
+                        OCIImageBuilder.manifestJson(OCIImageBuilder.descriptor(OCIImageBuilder.CONFIG_MEDIA_TYPE,
+                                configDigest, Files.size(blobDir.resolve(configDigest))), layers), blobDir));
+                for (Layer l : layers) mediaTypes.put(l.digest(), l.mediaType());
+                mediaTypes.put(configDigest, OCIImageBuilder.CONFIG_MEDIA_TYPE);
+                mediaTypes.put(manifestDigest, RegistryClient.OCI_MANIFEST);
+                taggedDigest = manifestDigest;
+                dockerManifest = ImageArchive.dockerManifestJson(configDigest, layers, spec.repoTag());
+                manifestDescriptors.add(OCIImageBuilder.descriptor(RegistryClient.OCI_MANIFEST, manifestDigest,
+                        Files.size(blobDir.resolve(manifestDigest)), "\"platform\": " + platform.json()));
+                manifests.put(platform, "sha256:" + manifestDigest);
+                platformLayers.put(platform, layers);
+            }
+
+            // Step 7: index.json. A multi-platform image is tagged as a nested image index, so that
+            // "latest" names the whole set and clients pick their platform from it
+            String tagged = RegistryClient.OCI_MANIFEST;
+            if (platforms.size() > 1) {
+                tagged = RegistryClient.OCI_INDEX;
+                taggedDigest = OCIImageBuilder.writeBlob(OCIImageBuilder.indexJson(manifestDescriptors), blobDir);
+                mediaTypes.put(taggedDigest, RegistryClient.OCI_INDEX);
+            }
+            String refName = "\"annotations\": { \"org.opencontainers.image.ref.name\": \"latest\" }";
+            String indexJson = OCIImageBuilder.indexJson(List.of(OCIImageBuilder.descriptor(
+                    tagged, taggedDigest, Files.size(blobDir.resolve(taggedDigest)), refName)));
+            ImageArchive outArchive = archive;
+            String dockerArchiveManifest = spec.format() == ImageArchive.Format.DOCKER_ARCHIVE ? dockerManifest : null;
+            metrics.time("output", () -> {
+                if (store != null) store.record(mediaTypes);
+                if (layout) {
+                    if (store != null) store.linkInto(BLOBS, mediaTypes.keySet());
+                    Files.writeString(OUT.resolve("index.json"), indexJson);
+                } else {
+                    outArchive.finish(mediaTypes.keySet(), indexJson, dockerArchiveManifest);
+                }
+                return null;
+            });
+
+            // Step 8: push straight from the blob directory, reusing what the registry already has
+            if (spec.pushTarget() != null) {
+                RegistryClient.Reference target = RegistryClient.Reference.parse(spec.pushTarget());
+                RegistryClient.Reference baseRef = RegistryClient.Reference.parse(base);
+                List<String> mountFrom = new ArrayList<>(spec.mountFrom());
+                if (spec.preserveBaseLayers() && baseRef.registry().equals(target.registry())) {
+                    mountFrom.add(baseRef.repository());
+                }
+                ImagePusher pusher = new ImagePusher(target, blobDir, mountFrom, ImagePusher.DEFAULT_CHUNK_SIZE);
+                ExecutorService uploads = Executors.newFixedThreadPool(jobs);
+                try {
+                    String pushed = tagged, pushedDigest = taggedDigest;
+                    metrics.time("push", () -> {
+                        pusher.push(pushed, pushedDigest, uploads);
+                        return null;
+                    });
+                } finally {
+                    uploads.shutdownNow();
+                }
+                System.out.println("Pushed " + target + " (" + pusher.uploaded + " blobs uploaded, " + pusher.mounted
+                        + " mounted, " + pusher.skipped + " already present)");
+            }
+            return new ImageResult(OUT, tagged, "sha256:" + taggedDigest, manifests, platformLayers, metrics);
+        } finally {
+            if (archive != null) archive.close();
+            if (tmpBlobs != null) JREBuilder.deleteDir(tmpBlobs);
+        }
+    }
+
+    // Runs work, or waits for a concurrent build already running work of the same key. Only blobs in
+    // the shared store can be shared; if the other build fails, this one tries on its own
+    private List<Layer> shared(String key, Callable<List<Layer>> work) throws Exception {
+        if (store == null) return work.call();
+        while (true) {
+            CompletableFuture<List<Layer>> mine = new CompletableFuture<>();
+            CompletableFuture<List<Layer>> running = inFlight.putIfAbsent(key, mine);
+            if (running != null) {
+                try {
+                    return running.get();
+                } catch (ExecutionException e) {
+                    continue;
+                }
+            }
+            try {
+                List<Layer> layers = work.call();
+                mine.complete(layers);
+                return layers;
+            } catch (Throwable e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ImageBuilderTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-image-builder-work";
+        RegistryClientTest.cleanDir(workDir);
+        Path work = Files.createDirectories(Paths.get(workDir));
+        Files.createDirectories(work.resolve("base/etc"));
+        Files.writeString(work.resolve("base/etc/hello"), "hi");
+        Path jre = Files.createDirectories(work.resolve("jre/bin"));
+        for (int i = 0; i < 200; i++) Files.writeString(jre.resolve("tool" + i), "tool " + i);
+        for (int i = 0; i < 6; i++) {
+            Files.createDirectories(work.resolve("app" + i + "/m"));
+            Files.writeString(work.resolve("app" + i + "/m/A.class"), "app " + i);
+        }
+
+        // --- 1. The spec builder checks required and contradicting settings ---
+        expectInvalid(ImageSpec.builder().app(work.resolve("app0")).module("m"), "Missing required");
+        expectInvalid(ImageSpec.builder().jre(work.resolve("jre")).platform(Platform.LINUX_AMD64, work.resolve("jre"))
+                .app(work.resolve("app0")).module("m"), "either --jre or --platform");
+        expectInvalid(ImageSpec.builder().platform(Platform.LINUX_AMD64, work.resolve("jre"))
+                .platform(Platform.parse("linux/arm64"), work.resolve("jre")).app(work.resolve("app0")).module("m")
+                .format(ImageArchive.Format.DOCKER_ARCHIVE), "docker-archive");
+
+        try (TestRegistry registry = new TestRegistry()) {
+            String layer = registry.putBlob(RegistryClientTest.gzipTar(work.resolve("base")));
+            String config = registry.putBlob("{ \"rootfs\": { \"type\": \"layers\", \"diff_ids\": [] } }".getBytes());
+            registry.putManifest("base", "latest", RegistryClient.OCI_MANIFEST, """
+                    { "schemaVersion": 2, "mediaType": "application/vnd.oci.image.manifest.v1+json",
+                      "config": { "mediaType": "application/vnd.oci.image.config.v1+json", "digest": "%s" },
+                      "layers": [ { "mediaType": "application/vnd.oci.image.layer.v1.tar+gzip", "digest": "%s" } ] }
+                    """.formatted(config, layer));
+            String base = registry.host() + "/base:latest";
+
+            // --- 2. A library build returns the digests it wrote ---
+            ImageBuilder builder = new ImageBuilder(work.resolve("cache"), false, 4);
+            ImageResult result = builder.build(spec(work, base, 0));
+            Object tagged = Json.array(Json.parseObject(Files.readString(work.resolve("out0/index.json"))), "manifests").get(0);
+            if (!result.digest().equals(Json.string(tagged, "digest")) || !result.mediaType().equals(RegistryClient.OCI_MANIFEST)) {
+                throw new AssertionError("Result " + result.digest() + " differs from index.json " + tagged);
+            }
+            if (!result.manifests().equals(Map.of(Platform.LINUX_AMD64, result.digest()))
+                    || result.layers().get(Platform.LINUX_AMD64).size() != 3) {
+                throw new AssertionError("Result: " + result);
+            }
+
+            // --- 3. A failing build throws instead of exiting ---
+            try {
+                builder.build(ImageSpec.builder().jre(work.resolve("no-such-jre")).app(work.resolve("app0")).module("m")
+                        .base(base).out(work.resolve("failed")).build());
+                throw new AssertionError("Build of a missing JRE succeeded");
+            } catch (java.io.IOException expected) {
+                // the JRE directory does not exist
+            }
+
+            // --- 4. Concurrent builds in one builder share the base download and the JRE layer ---
+            ImageBuilder fresh = new ImageBuilder(work.resolve("cache2"), false, 4);
+            int before = registry.blobRequests.get();
+            ExecutorService pool = Executors.newFixedThreadPool(6);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<ImageResult>> builds = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                ImageSpec spec = spec(work, base, i);
+                builds.add(pool.submit(() -> {
+                    start.await();
+                    return fresh.build(spec);
+                }));
+            }
+            start.countDown();
+            Set<Layer> jreLayers = new HashSet<>();
+            for (Future<ImageResult> build : builds) jreLayers.add(build.get().layers().get(Platform.LINUX_AMD64).get(1));
+            pool.shutdown();
+            if (registry.blobRequests.get() - before != 1) {
+                throw new AssertionError("Base downloaded " + (registry.blobRequests.get() - before) + " times");
+            }
+            if (jreLayers.size() != 1) throw new AssertionError("JRE layers differ: " + jreLayers);
+
+            // --- 5. Batch mode builds each line, reports bad lines, rejects builder options per line and
+            // a second line writing the same output ---
+            Path batch = work.resolve("batch.txt");
+            Files.writeString(batch, String.join("\n",
+                    "# three images and three bad lines",
+                    line(work, base, 1, "batch1"),
+                    "",
+                    line(work, base, 2, "batch2") + " --reproducible",
+                    line(work, base, 3, "batch3") + " --bogus",
+                    line(work, base, 4, "batch4") + " --cache-dir " + work.resolve("elsewhere"),
+                    line(work, base, 5, "batch1"),
+                    line(work, base, 5, "'batch 5'")));
+            int failed = OCIImageBuilder.runBatch(fresh, batch.toString(), 2);
+            if (failed != 3) throw new AssertionError("Failed lines: " + failed);
+            if (!List.of(OCIImageBuilder.splitLine(" --cds-training-args \"serve  --port 1\" --out a' 'b ")).equals(
+                    List.of("--cds-training-args", "serve  --port 1", "--out", "a b"))) {
+                throw new AssertionError("Quoted batch arguments not kept together");
+            }
+            for (String out : List.of("batch1", "batch2", "batch 5")) {
+                if (!Files.exists(work.resolve(out).resolve("index.json"))) throw new AssertionError("Not built: " + out);
+            }
+            if (Files.exists(work.resolve("batch3")) || Files.exists(work.resolve("elsewhere"))) {
+                throw new AssertionError("Bad line was built");
+            }
+
+            // --- 6. A blob corrupted in the store and the layout linking it is repaired by --verify and a rebuild ---
+            String jreLayer = result.layers().get(Platform.LINUX_AMD64).get(1).digest();
+            Path linked = work.resolve("out0/blobs/sha256").resolve(jreLayer);
+            Files.writeString(builder.store.path(jreLayer), "corrupt");  // in place, so through the layout's link too
+            if (!builder.verifyStore().equals(List.of(jreLayer))) throw new AssertionError("Corrupt blob not found");
+            if (!builder.build(spec(work, base, 0)).digest().equals(result.digest())) {
+                throw new AssertionError("Rebuild differs");
+            }
+            if (!Digests.sha256(linked).equals(jreLayer) || !Files.isSameFile(linked, builder.store.path(jreLayer))) {
+                throw new AssertionError("Layout still links the corrupt blob");
+            }
+        }
+
+        // --- 7. A failing task is rethrown only after the other tasks have stopped writing ---
+        Path blobs = Files.createDirectories(work.resolve("cancelled"));
+        CountDownLatch writing = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            OCIImageBuilder.runAll(pool, List.<Callable<String>>of(
+                    () -> OCIImageBuilder.writeBlob(blobs, out -> {
+                        out.write(new byte[OCIImageBuilder.BUFFER_SIZE * 2]);  // past the buffer, into the .tmp file
+                        writing.countDown();
+                        try {
+                            Thread.sleep(60_000);
+                        } catch (InterruptedException e) {
+                            Thread.sleep(200);  // slow to stop, like a task in the middle of a large write
+                            interrupted.set(true);
+                            throw e;
+                        }
+                    }),
+                    () -> {
+                        writing.await();
+                        throw new IllegalStateException("task failed");
+                    }));
+            throw new AssertionError("Failed task not rethrown");
+        } catch (IllegalStateException e) {
+            if (!e.getMessage().equals("task failed")) throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+        if (!interrupted.get()) throw new AssertionError("Blocking task still running after runAll");
+        try (var left = Files.list(blobs)) {
+            if (left.findAny().isPresent()) throw new AssertionError("Temporary blob left behind");
+        }
+
+        System.out.println("All ImageBuilder assertions passed!");
+        RegistryClientTest.cleanDir(workDir);
+    }
+
+    private static ImageSpec spec(Path work, String base, int app) {
+        return ImageSpec.builder().jre(work.resolve("jre")).app(work.resolve("app" + app)).module("m").base(base)
+                .out(work.resolve("out" + app)).reproducible().build();
+    }
+
+    private static String line(Path work, String base, int app, String out) {
+        return "--jre " + work.resolve("jre") + " --app " + work.resolve("app" + app) + " --module m --base " + base
+                + " --out " + work.resolve(out);
+    }
+
+    private static void expectInvalid(ImageSpec.Builder spec, String message) {
+        try {
+            spec.build();
+            throw new AssertionError("Accepted an invalid spec, expected: " + message);
+        } catch (IllegalArgumentException e) {
+            if (!e.getMessage().contains(message)) throw new AssertionError("Unexpected message: " + e.getMessage());
+        }
+    }
+}
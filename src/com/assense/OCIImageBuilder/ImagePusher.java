@@ -0,0 +1,108 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes an image from a local blob directory (the blob store or a layout's blobs/sha256) to a
+ * registry, without an intermediate archive.
+ * <p>
+ * Blobs the target repository already has are skipped after a HEAD request. Blobs that another
+ * repository of the same registry has (typically the base image and a JRE shared by many
+ * images) are mounted. The rest are uploaded in parallel, each as a sequence of chunked PATCH
+ * requests. Manifests are pushed only once all their blobs are in place, and the tagged root
+ * last, so the tag never points at an incomplete image.
+ */
+public class ImagePusher {
+    static final long DEFAULT_CHUNK_SIZE = 16L << 20;
+
+    private final RegistryClient registry;
+    private final RegistryClient.Reference target;
+    private final Path blobDir;
+    private final List<String> mountFrom;
+    private final long chunkSize;
+    final AtomicInteger skipped = new AtomicInteger();
+    final AtomicInteger mounted = new AtomicInteger();
+    final AtomicInteger uploaded = new AtomicInteger();
+
+    /**
+     * @param target    repository and tag (or digest) to push to
+     * @param blobDir   directory holding the image's blobs, named by hex digest
+     * @param mountFrom repositories on the target registry to try mounting missing blobs from
+     * @param chunkSize maximum bytes per PATCH request
+     */
+    public ImagePusher(RegistryClient.Reference target, Path blobDir, List<String> mountFrom, long chunkSize) {
+        this(new RegistryClient(target.registry()), target, blobDir, mountFrom, chunkSize);
+    }
+
+    ImagePusher(RegistryClient registry, RegistryClient.Reference target, Path blobDir, List<String> mountFrom,
+                long chunkSize) {
+        this.registry = registry;
+        this.target = target;
+        this.blobDir = blobDir;
+        this.mountFrom = List.copyOf(mountFrom);
+        this.chunkSize = chunkSize;
+    }
+
+    /** Pushes the manifest or image index {@code digest} (hex) and everything it references, using {@code pool} for blobs. */
+    public void push(String mediaType, String digest, ExecutorService pool) throws Exception {
+        byte[] root = Files.readAllBytes(blobDir.resolve(digest));
+        // manifests to push before the root: the platform manifests of an index
+        Map<String, String> children = new LinkedHashMap<>();
+        List<byte[]> manifests = new ArrayList<>();
+        if (RegistryClient.OCI_INDEX.equals(mediaType)) {
+            for (Object m : Json.array(Json.parseObject(new String(root, StandardCharsets.UTF_8)), "manifests")) {
+                String child = Json.string(m, "digest").substring("sha256:".length());
+                children.put(child, Json.string(m, "mediaType"));
+                manifests.add(Files.readAllBytes(blobDir.resolve(child)));
+            }
+        } else {
+            manifests.add(root);
+        }
+
+        Set<String> blobs = new LinkedHashSet<>();
+        for (byte[] manifest : manifests) {
+            Map<String, Object> json = Json.parseObject(new String(manifest, StandardCharsets.UTF_8));
+            blobs.add(Json.string(Json.object(json, "config"), "digest"));
+            for (Object layer : Json.array(json, "layers")) blobs.add(Json.string(layer, "digest"));
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String blob : blobs) tasks.add(() -> pushBlob(blob));
+        OCIImageBuilder.runAll(pool, tasks);
+
+        for (Map.Entry<String, String> child : children.entrySet()) {
+            registry.putManifest(target.repository(), "sha256:" + child.getKey(), child.getValue(),
+                    Files.readAllBytes(blobDir.resolve(child.getKey())));
+        }
+        registry.putManifest(target.repository(), target.reference(), mediaType, root);
+    }
+
+    private Void pushBlob(String digest) throws Exception {
+        String repository = target.repository();
+        if (registry.hasBlob(repository, digest)) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        for (String from : mountFrom) {
+            if (from.equals(repository)) continue;
+            try {
+                if (registry.mountBlob(repository, digest, from)) {
+                    mounted.incrementAndGet();
+                    return null;
+                }
+            } catch (IOException e) {
+                // e.g. no pull access to the source, or still failing after retries: upload instead
+            }
+        }
+        Path blob = blobDir.resolve(digest.substring("sha256:".length()));
+        registry.pushBlob(repository, digest, blob, chunkSize);
+        uploaded.incrementAndGet();
+        BuildMetrics.current().bytesUploaded.addAndGet(Files.size(blob));
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ImagePusherTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-push-work";
+        RegistryClientTest.cleanDir(workDir);
+        Path blobs = Files.createDirectories(Paths.get(workDir, "blobs"));
+
+        // --- 1. Two-platform image: shared base and app layers, one JRE per platform ---
+        byte[] baseContent = "base layer".getBytes(StandardCharsets.UTF_8);
+        byte[] large = new byte[2500];
+        new Random(1).nextBytes(large);
+        String base = OCIImageBuilder.writeBlob(blobs, out -> out.write(baseContent));
+        String jreAmd64 = OCIImageBuilder.writeBlob(blobs, out -> out.write(large));
+        String jreArm64 = OCIImageBuilder.writeBlob("arm64 jre", blobs);
+        String app = OCIImageBuilder.writeBlob("app", blobs);
+        List<String> manifests = new ArrayList<>(), configs = new ArrayList<>();
+        for (String[] platform : List.of(new String[]{"amd64", jreAmd64}, new String[]{"arm64", jreArm64})) {
+            List<Layer> layers = new ArrayList<>();
+            for (String digest : List.of(base, platform[1], app)) {
+                layers.add(new Layer(Layer.MEDIA_TYPE_TAR, digest, "sha256:" + digest, Files.size(blobs.resolve(digest))));
+            }
+            Platform p = new Platform("linux", platform[0], null);
+            String config = OCIImageBuilder.writeBlob(OCIImageBuilder.configJson(p, layers, "m"), blobs);
+            configs.add(config);
+            String manifest = OCIImageBuilder.writeBlob(OCIImageBuilder.manifestJson(OCIImageBuilder.descriptor(
+                    OCIImageBuilder.CONFIG_MEDIA_TYPE, config, Files.size(blobs.resolve(config))), layers), blobs);
+            manifests.add(OCIImageBuilder.descriptor(RegistryClient.OCI_MANIFEST, manifest,
+                    Files.size(blobs.resolve(manifest)), "\"platform\": " + p.json()));
+        }
+        String index = OCIImageBuilder.writeBlob(OCIImageBuilder.indexJson(manifests), blobs);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try (TestRegistry registry = new TestRegistry()) {
+            // the base is already in the registry's base image repository, the app in the target one
+            registry.putBlob("distroless/base", baseContent);
+            registry.putBlob("team/app", "app".getBytes(StandardCharsets.UTF_8));
+
+            // --- 2. Push: HEAD-skip, mount, chunked upload, manifests last; transient failures are retried ---
+            RegistryClient.Reference target = RegistryClient.Reference.parse(registry.host() + "/team/app:v1");
+            ImagePusher pusher = new ImagePusher(target, blobs, List.of("distroless/base"), 1024);
+            registry.unavailableResponses.set(3);
+            pusher.push(RegistryClient.OCI_INDEX, index, pool);
+            if (registry.unavailableResponses.get() != 0) throw new AssertionError("Failures not injected");
+            // uploaded: both JREs and both configs
+            if (pusher.skipped.get() != 1 || pusher.mounted.get() != 1 || pusher.uploaded.get() != 4) {
+                throw new AssertionError("Expected 1 skipped, 1 mounted, 4 uploaded; got " + pusher.skipped + ", "
+                        + pusher.mounted + ", " + pusher.uploaded);
+            }
+            // 2500 bytes in 1024-byte chunks, one chunk for each of the others; pushed once each
+            List<String> blobEvents = new ArrayList<>(registry.events);
+            blobEvents.removeIf(e -> e.startsWith("manifest "));
+            Set<String> expected = new HashSet<>(Set.of("mount team/app@sha256:" + base + " from distroless/base",
+                    "upload team/app@sha256:" + jreAmd64 + " in 3 chunks", "upload team/app@sha256:" + jreArm64 + " in 1 chunks"));
+            for (String config : configs) expected.add("upload team/app@sha256:" + config + " in 1 chunks");
+            if (blobEvents.size() != expected.size() || !new HashSet<>(blobEvents).equals(expected)) {
+                throw new AssertionError("Expected " + expected + ", got " + blobEvents);
+            }
+            for (String digest : List.of(base, jreAmd64, jreArm64, app)) {
+                if (!registry.hasBlob("team/app", "sha256:" + digest)) throw new AssertionError("Missing blob " + digest);
+            }
+            if (!Arrays.equals(registry.blobs.get("sha256:" + jreAmd64), large)) throw new AssertionError("Chunks reassembled wrongly");
+
+            // --- 3. The tag is pushed last, after both platform manifests, after every blob ---
+            List<String> events = List.copyOf(registry.events);
+            if (!events.get(events.size() - 1).equals("manifest team/app:v1")) throw new AssertionError("Tag not last: " + events);
+            int firstManifest = 0;
+            while (!events.get(firstManifest).startsWith("manifest ")) firstManifest++;
+            if (firstManifest != events.size() - 3) throw new AssertionError("Blob after a manifest: " + events);
+            String[] pushed = registry.manifests.get("team/app:v1");
+            if (!pushed[0].equals(RegistryClient.OCI_INDEX)) throw new AssertionError("Index pushed as " + pushed[0]);
+            if (!pushed[1].equals(Files.readString(blobs.resolve(index)))) throw new AssertionError("Index altered");
+
+            // --- 4. Pushing again transfers nothing ---
+            ImagePusher again = new ImagePusher(target, blobs, List.of(), 1024);
+            again.push(RegistryClient.OCI_INDEX, index, pool);
+            List<String> newEvents = List.copyOf(registry.events).subList(events.size(), registry.events.size());
+            if (again.skipped.get() != 6 || newEvents.stream().anyMatch(e -> !e.startsWith("manifest "))) {
+                throw new AssertionError("Blobs pushed again: " + newEvents);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        System.out.println("All ImagePusher assertions passed!");
+        RegistryClientTest.cleanDir(workDir);
+    }
+}
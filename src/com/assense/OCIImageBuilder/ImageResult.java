@@ -0,0 +1,23 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * What {@link ImageBuilder#build} produced for an {@link ImageSpec}. Digests carry the
+ * {@code sha256:} prefix.
+ *
+ * @param out       layout directory or archive file
+ * @param mediaType media type of the tagged manifest: an image manifest, or an image index for several platforms
+ * @param digest    digest of the tagged manifest, as pushed or listed in index.json
+ * @param manifests per platform, the digest of its image manifest
+ * @param layers    per platform, its layers from the bottom up
+ * @param metrics   cost of the build
+ */
+public record ImageResult(Path out, String mediaType, String digest, Map<Platform, String> manifests,
+                          Map<Platform, List<Layer>> layers, BuildMetrics metrics) {
+    public ImageResult {
+        manifests = Collections.unmodifiableMap(new LinkedHashMap<>(manifests));
+        layers = Collections.unmodifiableMap(new LinkedHashMap<>(layers));
+    }
+}
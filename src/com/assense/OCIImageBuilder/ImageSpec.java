@@ -0,0 +1,185 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * What to build: one image for one app, for one or more platforms. Created with {@link #builder()},
+ * whose defaults are those of the command line; {@link ImageBuilder} builds it.
+ *
+ * @param platforms          JRE directory per platform, in manifest order
+ * @param appDir             app directory, archived at /opt/app
+ * @param moduleName         module of the main class
+ * @param appLayers          rules splitting the app directory into layers (see {@link AppLayering})
+ * @param baseImage          base image reference
+ * @param preserveBaseLayers reference the base layers verbatim instead of flattening them
+ * @param layerEpoch         fixed mtime of reproducible layers, or null
+ * @param compression        layer compression
+ * @param cds                add an AppCDS archive from a training run
+ * @param cdsTrainingArgs    arguments of the training run
+ * @param cdsTrainingTimeout time after which the training run is stopped
+ * @param format             output format
+ * @param out                layout directory or archive file
+ * @param repoTag            RepoTags entry of a docker-archive, or null
+ * @param pushTarget         image to push to, or null
+ * @param mountFrom          repositories to mount pushed blobs from
+ * @param metricsFile        file to write the build's {@link BuildMetrics} to, or null
+ */
+public record ImageSpec(Map<Platform, Path> platforms, Path appDir, String moduleName, List<AppLayering.Rule> appLayers,
+                        String baseImage, boolean preserveBaseLayers, Long layerEpoch, Layer.Compression compression,
+                        boolean cds, List<String> cdsTrainingArgs, Duration cdsTrainingTimeout,
+                        ImageArchive.Format format, Path out, String repoTag, String pushTarget, List<String> mountFrom,
+                        Path metricsFile) {
+    public ImageSpec {
+        platforms = Collections.unmodifiableMap(new LinkedHashMap<>(platforms));
+        appLayers = List.copyOf(appLayers);
+        cdsTrainingArgs = List.copyOf(cdsTrainingArgs);
+        mountFrom = List.copyOf(mountFrom);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** Collects the settings of an {@link ImageSpec}; {@link #build()} checks them. */
+    public static final class Builder {
+        private final Map<Platform, Path> platforms = new LinkedHashMap<>();
+        private Path jre, appDir, out, metricsFile;
+        private String moduleName, repoTag, pushTarget, baseImage = OCIImageBuilder.DISTROLESS_IMAGE;
+        private final List<AppLayering.Rule> appLayers = new ArrayList<>();
+        private boolean preserveBaseLayers, cds;
+        // SOURCE_DATE_EPOCH in the environment implies reproducible layers
+        private Long layerEpoch = System.getenv("SOURCE_DATE_EPOCH") != null ? TarWriter.reproducibleEpoch() : null;
+        private Layer.Compression compression = Layer.Compression.NONE;
+        private List<String> cdsTrainingArgs = List.of();
+        private Duration cdsTrainingTimeout = Duration.ofSeconds(120);
+        private ImageArchive.Format format = ImageArchive.Format.OCI;
+        private final List<String> mountFrom = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /** The JRE of a linux/amd64 image; exclusive with {@link #platform}. */
+        public Builder jre(Path jreDir) {
+            this.jre = jreDir;
+            return this;
+        }
+
+        /** Adds a platform and its JRE; repeat for a multi-platform image. */
+        public Builder platform(Platform platform, Path jreDir) {
+            if (platforms.put(platform, jreDir) != null) throw new IllegalArgumentException("Duplicate platform: " + platform);
+            return this;
+        }
+
+        public Builder app(Path appDir) {
+            this.appDir = appDir;
+            return this;
+        }
+
+        public Builder module(String moduleName) {
+            this.moduleName = moduleName;
+            return this;
+        }
+
+        public Builder appLayer(AppLayering.Rule rule) {
+            appLayers.add(rule);
+            return this;
+        }
+
+        public Builder base(String baseImage) {
+            this.baseImage = baseImage;
+            return this;
+        }
+
+        public Builder preserveBaseLayers(boolean preserve) {
+            this.preserveBaseLayers = preserve;
+            return this;
+        }
+
+        /** Reproducible layers with mtime SOURCE_DATE_EPOCH (or 0). */
+        public Builder reproducible() {
+            this.layerEpoch = TarWriter.reproducibleEpoch();
+            return this;
+        }
+
+        public Builder layerEpoch(Long layerEpoch) {
+            this.layerEpoch = layerEpoch;
+            return this;
+        }
+
+        public Builder compression(Layer.Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder cds(boolean cds) {
+            this.cds = cds;
+            return this;
+        }
+
+        public Builder cdsTrainingArgs(List<String> args) {
+            this.cdsTrainingArgs = args;
+            return this;
+        }
+
+        public Builder cdsTrainingTimeout(Duration timeout) {
+            this.cdsTrainingTimeout = timeout;
+            return this;
+        }
+
+        public Builder format(ImageArchive.Format format) {
+            this.format = format;
+            return this;
+        }
+
+        /** Layout directory or archive file (default: oci-image, or oci-image.tar for archives). */
+        public Builder out(Path out) {
+            this.out = out;
+            return this;
+        }
+
+        public Builder tag(String repoTag) {
+            this.repoTag = repoTag;
+            return this;
+        }
+
+        public Builder push(String image) {
+            this.pushTarget = image;
+            return this;
+        }
+
+        public Builder mountFrom(String repository) {
+            mountFrom.add(repository);
+            return this;
+        }
+
+        public Builder metrics(Path file) {
+            this.metricsFile = file;
+            return this;
+        }
+
+        // whether any JRE, app or module was given; without them --gc runs on its own
+        boolean hasInputs() {
+            return jre != null || !platforms.isEmpty() || appDir != null || moduleName != null;
+        }
+
+        /** @throws IllegalArgumentException if settings are missing or contradict each other */
+        public ImageSpec build() {
+            Map<Platform, Path> jres = new LinkedHashMap<>(platforms);
+            if (jre != null && !jres.isEmpty()) throw new IllegalArgumentException("Use either --jre or --platform, not both.");
+            if (jre != null) jres.put(Platform.LINUX_AMD64, jre);
+            if (jres.isEmpty() || appDir == null || moduleName == null) {
+                throw new IllegalArgumentException("Missing required arguments.");
+            }
+            if (format == ImageArchive.Format.DOCKER_ARCHIVE && jres.size() > 1) {
+                throw new IllegalArgumentException(
+                        "docker-archive holds a single platform; use oci-archive for multi-platform images.");
+            }
+            Path output = out != null ? out : Paths.get(format == ImageArchive.Format.OCI ? "oci-image" : "oci-image.tar");
+            return new ImageSpec(jres, appDir, moduleName, appLayers, baseImage, preserveBaseLayers, layerEpoch,
+                    compression, cds, cdsTrainingArgs, cdsTrainingTimeout, format, output, repoTag, pushTarget,
+                    mountFrom, metricsFile);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes an uncompressed directory layer using the previous build of the same directory, so that
+ * only new and changed files are read.
+ * <p>
+ * Each build leaves an index of its regular files: entry name, size, mtime, inode, optionally a
+ * content hash, and the offset of the content in the layer blob. The next build still walks the
+ * tree and writes every header anew, so the result is byte-identical to a full build, but the
+ * content of files whose metadata (and hash, with content hashing) is unchanged is copied from
+ * the previous blob with {@link FileChannel#transferTo}, which the kernel performs without a
+ * round trip through the JVM. Written bytes are hashed on the way out as in
+ * {@link OCIImageBuilder#writeBlob}; only when content was copied, which bypasses that hash, is
+ * the blob hashed again in one sequential pass. A SHA-256 cannot be resumed from the unchanged
+ * part, so this pass is what remains of the full cost of an incremental build.
+ */
+public class IncrementalLayer implements TarWriter.ContentSource {
+    /** Per-file index row; {@code contentHash} is empty without content hashing. */
+    record Row(String name, long size, long mtimeNanos, String inode, String contentHash, long offset) {}
+
+    /** Writes the layer's entries, e.g. {@code tar -> tar.addTree(...)}. */
+    interface Content {
+        void writeTo(TarWriter tar) throws IOException;
+    }
+
+    private final Path indexFile;
+    private final Path blobDir;
+    private final boolean hashContents;
+    private final Map<String, Row> previous = new HashMap<>();
+    private final List<Row> rows = new ArrayList<>();
+    private FileChannel previousBlob;
+    private FileChannel target;
+    /** Files whose content was copied from the previous blob, and read from the file system. */
+    int reused, read;
+
+    /**
+     * @param indexFile    index of the previous build of this layer, replaced by this build's
+     * @param blobDir      blob directory holding the previous blob and receiving the new one
+     * @param hashContents also require an unchanged content hash to reuse a file
+     */
+    public IncrementalLayer(Path indexFile, Path blobDir, boolean hashContents) {
+        this.indexFile = indexFile;
+        this.blobDir = blobDir;
+        this.hashContents = hashContents;
+    }
+
+    /** Writes the layer into the blob directory, with entry mtimes fixed to layerEpoch unless null. */
+    public Layer write(Long layerEpoch, Content content) throws Exception {
+        MessageDigest md = Digests.sha256();
+        Path tmp = blobDir.resolve(".blob-" + UUID.randomUUID() + ".tmp");
+        try {
+            FileChannel prev = openPrevious();
+            try (prev; FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                previousBlob = prev;
+                target = out;
+                OutputStream stream = new BufferedOutputStream(new DigestOutputStream(Channels.newOutputStream(out), md),
+                        OCIImageBuilder.BUFFER_SIZE);
+                TarWriter tar = new TarWriter(stream, layerEpoch, this);
+                content.writeTo(tar);
+                tar.finish();
+            } finally {
+                previousBlob = target = null;
+            }
+            // copied content went around md; on a cold build nothing was copied and md saw every byte
+            String digest = reused > 0 ? Digests.sha256(tmp) : Digests.hex(md.digest());
+            long size = Files.size(tmp);
+            BuildMetrics.current().bytesWritten.addAndGet(size);
+            // keep an existing blob: replacing it would cut its hard links to the layouts sharing it
+            if (!Files.exists(blobDir.resolve(digest))) {
+                Files.move(tmp, blobDir.resolve(digest), StandardCopyOption.ATOMIC_MOVE);
+            }
+            writeIndex(digest, size);
+            return new Layer(Layer.MEDIA_TYPE_TAR, digest, "sha256:" + digest, size);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public boolean copy(Path file, String name, Map<String, Object> attrs, long offset) throws IOException {
+        Row old = previousBlob != null ? previous.get(name) : null;
+        long size = (Long) attrs.get("size");
+        if (old == null || old.size() != size || old.mtimeNanos() != mtimeNanos(attrs)
+                || !old.inode().equals(inode(attrs))) {
+            return false;
+        }
+        String hash = hashContents ? Digests.sha256(file) : "";
+        if (!hash.equals(old.contentHash())) return false;
+        long length = TarWriter.paddedSize(size);
+        for (long done = 0; done < length; ) {
+            long n = previousBlob.transferTo(old.offset() + done, length - done, target);
+            if (n <= 0) throw new IOException("Previous layer blob truncated");
+            done += n;
+        }
+        rows.add(new Row(name, size, old.mtimeNanos(), old.inode(), hash, offset));
+        BuildMetrics.current().bytesRead.addAndGet(size);
+        reused++;
+        return true;
+    }
+
+    @Override
+    public void archived(Path file, String name, Map<String, Object> attrs, long offset) throws IOException {
+        read++;
+        rows.add(new Row(name, (Long) attrs.get("size"), mtimeNanos(attrs), inode(attrs),
+                hashContents ? Digests.sha256(file) : "", offset));
+    }
+
+    // The previous blob if the index names one that is still present, with its rows loaded
+    private FileChannel openPrevious() throws IOException {
+        if (!Files.exists(indexFile)) return null;
+        List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) return null;
+        String[] head = lines.get(0).split("\t");
+        Path blob = blobDir.resolve(head[0]);
+        if (head.length != 2 || !Files.isRegularFile(blob) || Files.size(blob) != Long.parseLong(head[1])) return null;
+        for (String line : lines.subList(1, lines.size())) {
+            String[] f = line.split("\t", -1);
+            previous.put(f[0], new Row(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), f[3], f[4], Long.parseLong(f[5])));
+        }
+        return FileChannel.open(blob, StandardOpenOption.READ);
+    }
+
+    private void writeIndex(String digest, long size) throws IOException {
+        StringBuilder sb = new StringBuilder(digest).append('\t').append(size).append('\n');
+        for (Row r : rows) {
+            // such names cannot be stored; their files are simply read again next time
+            if (r.name().indexOf('\t') >= 0 || r.name().indexOf('\n') >= 0) continue;
+            sb.append(r.name()).append('\t').append(r.size()).append('\t').append(r.mtimeNanos()).append('\t')
+                    .append(r.inode()).append('\t').append(r.contentHash()).append('\t').append(r.offset()).append('\n');
+        }
+        Files.createDirectories(indexFile.getParent());
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + "-" + UUID.randomUUID() + ".tmp");
+        Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+        Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long mtimeNanos(Map<String, Object> attrs) {
+        return ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS);
+    }
+
+    // dev:ino where available, so a file replaced by another of the same size and mtime is noticed
+    private static String inode(Map<String, Object> attrs) {
+        return attrs.getOrDefault("dev", "") + ":" + attrs.getOrDefault("ino", "");
+    }
+
+}
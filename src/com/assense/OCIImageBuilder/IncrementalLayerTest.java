@@ -0,0 +1,77 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+public class IncrementalLayerTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-incremental-work";
+        LayerCacheTest.cleanDir(workDir);
+        Path src = Paths.get(workDir, "app/m/pkg");
+        Path blobs = Files.createDirectories(Paths.get(workDir, "blobs"));
+        Path index = Paths.get(workDir, "index.tsv");
+        Path app = Paths.get(workDir, "app");
+
+        for (Long epoch : new Long[]{null, 0L}) {
+            Files.deleteIfExists(index);
+            LayerCacheTest.cleanDir(src.toString());
+            Files.createDirectories(src);
+            for (int i = 0; i < 40; i++) Files.writeString(src.resolve("C" + i + ".class"), "class " + i + "\n".repeat(i * 37));
+
+            // --- 1. First build reads everything and matches a full build ---
+            IncrementalLayer first = build(index, blobs, app, epoch, false);
+            if (first.read != 40 || first.reused != 0) throw new AssertionError("First build: " + first.read + "/" + first.reused);
+
+            // --- 2. One changed, one added, one deleted file: only the two new contents are read ---
+            Files.writeString(src.resolve("C3.class"), "changed");
+            Files.setLastModifiedTime(src.resolve("C3.class"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+            Files.writeString(src.resolve("New.class"), "new");
+            Files.delete(src.resolve("C7.class"));
+            IncrementalLayer second = build(index, blobs, app, epoch, false);
+            if (second.read != 2 || second.reused != 38) throw new AssertionError("Second build: " + second.read + "/" + second.reused);
+
+            // --- 3. Without changes everything is reused ---
+            IncrementalLayer third = build(index, blobs, app, epoch, false);
+            if (third.read != 0 || third.reused != 40) throw new AssertionError("Third build: " + third.read + "/" + third.reused);
+
+            // --- 4. Content hashing notices a change hidden behind unchanged size and mtime ---
+            Path c5 = src.resolve("C5.class");
+            FileTime mtime = Files.getLastModifiedTime(c5);
+            Files.writeString(c5, Files.readString(c5).replace("class", "CLASS"));
+            Files.setLastModifiedTime(c5, mtime);
+            build(index, blobs, app, epoch, true);
+            IncrementalLayer hashed = build(index, blobs, app, epoch, true);
+            if (hashed.read != 0) throw new AssertionError("Hashed build read " + hashed.read);
+            Files.writeString(c5, Files.readString(c5).replace("CLASS", "class"));
+            Files.setLastModifiedTime(c5, mtime);
+            IncrementalLayer rehashed = build(index, blobs, app, epoch, true);
+            if (rehashed.read != 1) throw new AssertionError("Hidden change not read: " + rehashed.read);
+
+            // --- 5. A lost previous blob falls back to reading everything ---
+            try (var list = Files.list(blobs)) {
+                for (Path blob : list.toList()) Files.delete(blob);
+            }
+            IncrementalLayer lost = build(index, blobs, app, epoch, false);
+            if (lost.reused != 0) throw new AssertionError("Reused from a missing blob");
+        }
+
+        System.out.println("All IncrementalLayer assertions passed!");
+        LayerCacheTest.cleanDir(workDir);
+    }
+
+    // Builds incrementally and checks the blob against a full build of the same tree
+    private static IncrementalLayer build(Path index, Path blobs, Path app, Long epoch, boolean hashContents)
+            throws Exception {
+        IncrementalLayer incremental = new IncrementalLayer(index, blobs, hashContents);
+        Layer layer = incremental.write(epoch, tar -> tar.addTree(app, "/opt/app"));
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        OCIImageBuilder.createTarWithDir(app.toString(), "/opt/app", full, epoch);
+        if (!Arrays.equals(Files.readAllBytes(blobs.resolve(layer.digest())), full.toByteArray())) {
+            throw new AssertionError("Incremental layer differs from a full build");
+        }
+        if (!layer.digest().equals(Digests.sha256(full.toByteArray()))) throw new AssertionError("Wrong digest");
+        return incremental;
+    }
+}
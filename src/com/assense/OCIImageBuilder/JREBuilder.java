@@ -1,40 +1,328 @@
 package com.assense.OCIImageBuilder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.module.ModuleDescriptor;
+import java.lang.module.ModuleFinder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Simple helper that creates a custom JRE for a given module using jlink.
+ * <p>
+ * Built JREs are cached by the JDK release, the jlink flags, the root modules and the contents
+ * of the app modules linked in, so an unchanged build is a copy of
+ * the cached JRE instead of a jlink run.
  */
 public class JREBuilder {
+    /** jlink flag sets, on top of stripping debug information, header files and man pages. */
+    public enum Profile {
+        /** No further flags. */
+        DEFAULT,
+        /** Smallest image: compressed resources, at some cost in startup time. */
+        SIZE,
+        /** Fastest startup: a default CDS archive of the JDK classes. */
+        STARTUP;
+
+        public static Profile parse(String name) {
+            return switch (name) {
+                case "default" -> DEFAULT;
+                case "size" -> SIZE;
+                case "startup" -> STARTUP;
+                default -> throw new IllegalArgumentException("Unknown profile: " + name + " (use default, size or startup)");
+            };
+        }
+
+        List<String> flags(int jdkFeature) {
+            List<String> flags = new ArrayList<>(List.of("--strip-debug", "--no-header-files", "--no-man-pages"));
+            switch (this) {
+                // zip-N replaced the numeric levels in JDK 21
+                case SIZE -> flags.add(jdkFeature >= 21 ? "--compress=zip-9" : "--compress=2");
+                // the plugin arrived in JDK 18; before, the archive is dumped after linking (see dumpCds)
+                case STARTUP -> { if (jdkFeature >= 18) flags.add("--generate-cds-archive"); }
+                case DEFAULT -> { }
+            }
+            return flags;
+        }
+    }
+
+    /**
+     * How to build the JRE.
+     *
+     * @param profile      jlink flag set
+     * @param minimize     link only the JDK modules jdeps finds the app using, plus those its modules
+     *                     require, instead of the app module and its whole module graph; the app modules
+     *                     are then loaded from the image's module path
+     * @param addModules   further modules to link, e.g. ones only used through reflection or services
+     * @param jlinkOptions further jlink options, e.g. {@code --exclude-files=...}
+     * @param cacheDir     cache root (see {@link LayerCache#defaultRoot()}), or null to always run jlink
+     */
+    public record Options(Profile profile, boolean minimize, List<String> addModules, List<String> jlinkOptions,
+                          Path cacheDir) {
+        public static final Options DEFAULT = new Options(Profile.DEFAULT, false, List.of(), List.of(), null);
+    }
+
+    // jlink invocations, for tests
+    static final AtomicInteger jlinkRuns = new AtomicInteger();
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 3 || Arrays.asList(args).contains("--help")) {
-            System.out.println("Usage: java JREBuilder <module-path> <module-name> <output-dir>");
+        if (args.length == 0 || Arrays.asList(args).contains("--help")) {
+            printHelp();
             System.exit(args.length == 0 ? 1 : 0);
         }
-        build(args[0], args[1], args[2]);
+        Profile profile = Profile.DEFAULT;
+        boolean minimize = false;
+        List<String> addModules = new ArrayList<>(), jlinkOptions = new ArrayList<>();
+        Path cacheDir = LayerCache.defaultRoot();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if (!args[i].equals("--minimize") && !args[i].equals("--no-cache") && i + 1 >= args.length) {
+                fail("Missing value for " + args[i]);
+            }
+            switch (args[i]) {
+                case "--profile":
+                    try {
+                        profile = Profile.parse(args[++i]);
+                    } catch (IllegalArgumentException e) {
+                        fail(e.getMessage());
+                    }
+                    break;
+                case "--minimize":
+                    minimize = true;
+                    break;
+                case "--add-modules":
+                    addModules.addAll(List.of(args[++i].split(",")));
+                    break;
+                case "--jlink-option":
+                    jlinkOptions.add(args[++i]);
+                    break;
+                case "--cache-dir":
+                    cacheDir = Paths.get(args[++i]);
+                    break;
+                case "--no-cache":
+                    cacheDir = null;
+                    break;
+                default:
+                    fail("Unknown argument: " + args[i]);
+            }
+        }
+        if (args.length - i != 3) fail("Expected <module-path> <module-name> <output-dir>");
+        build(args[i], args[i + 1], args[i + 2], new Options(profile, minimize, addModules, jlinkOptions, cacheDir));
+    }
+
+    static void printHelp() {
+        System.out.println("""
+        Usage: java JREBuilder [options] <module-path> <module-name> <output-dir>
+
+        Options:
+          --profile <p>         default: strip debug information, header files and man pages
+                                size: also compress resources (smallest image)
+                                startup: also generate a CDS archive of the JDK classes (fastest startup)
+          --minimize            Link only the JDK modules the app uses (found with jdeps) or its modules
+                                require; the app modules stay on the image's module path
+          --add-modules <m,...> Further modules to link, e.g. ones only loaded reflectively
+          --jlink-option <opt>  Further jlink option, e.g. --exclude-files=<pattern>; repeatable
+          --cache-dir <dir>     JRE cache location (default: ~/.cache/oci-image-builder)
+          --no-cache            Always run jlink
+        """);
+    }
+
+    static void fail(String msg) {
+        System.err.println(msg);
+        printHelp();
+        System.exit(1);
     }
 
     /**
      * Creates a custom JRE at {@code outDir} containing the specified module.
      */
     public static void build(String modulePath, String moduleName, String outDir) throws Exception {
+        build(modulePath, moduleName, outDir, Options.DEFAULT);
+    }
+
+    /**
+     * Creates a custom JRE at {@code outDir} for the specified module, reusing a cached JRE built
+     * from the same JDK, flags and modules.
+     */
+    public static void build(String modulePath, String moduleName, String outDir, Options options) throws Exception {
         Path out = Paths.get(outDir);
         if (Files.exists(out)) deleteDir(out);
 
         String javaHome = Optional.ofNullable(System.getenv("JAVA_HOME"))
                 .orElseGet(() -> System.getProperty("java.home"));
+        Path release = Paths.get(javaHome, "release");
+        String releaseInfo = Files.exists(release) ? Files.readString(release) : "";
         String jmods = Paths.get(javaHome, "jmods").toString();
 
-        runCmd("jlink",
-                "--module-path", jmods + File.pathSeparator + modulePath,
-                "--add-modules", moduleName,
-                "--output", outDir,
-                "--strip-debug",
-                "--no-header-files",
-                "--no-man-pages");
+        Set<String> roots = new TreeSet<>(options.addModules());
+        if (options.minimize()) roots.addAll(usedJdkModules(modulePath, releaseInfo));
+        else roots.add(moduleName);
+        int jdkFeature = featureVersion(releaseInfo);
+        boolean dumpCds = options.profile() == Profile.STARTUP && jdkFeature < 18;
+        List<String> flags = new ArrayList<>(options.profile().flags(jdkFeature));
+        flags.addAll(options.jlinkOptions());
+
+        List<String> cmd = new ArrayList<>(List.of("jlink",
+                "--module-path", options.minimize() ? jmods : jmods + File.pathSeparator + modulePath,
+                "--add-modules", String.join(",", roots)));
+        cmd.addAll(flags);
+        if (options.cacheDir() == null) {
+            cmd.addAll(List.of("--output", outDir));
+            jlinkRuns.incrementAndGet();
+            runCmd(cmd.toArray(String[]::new));
+            if (dumpCds) dumpCds(out);
+            return;
+        }
+
+        Path jres = Files.createDirectories(options.cacheDir().resolve("jre"));
+        // the JDK release and the roots determine the JDK modules; linked app modules count by content
+        String key = Digests.sha256(("v1\n" + releaseInfo + "\n" + flags + "\n" + roots + "\n"
+                + (options.minimize() ? "" : modulePathContents(modulePath))).getBytes(StandardCharsets.UTF_8));
+        Path cached = jres.resolve(key);
+        // not the directory's own mtime, which the copy carries into the output
+        Path used = jres.resolve(key + ".used");
+        for (int attempt = 0; ; attempt++) {
+            // marked before the lookup, so that a concurrent BlobStore.gc keeps a JRE found cached
+            try {
+                Files.createFile(used);
+            } catch (FileAlreadyExistsException e) {
+                Files.setLastModifiedTime(used, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            if (Files.isDirectory(cached)) {
+                System.out.println("Reusing cached JRE " + key);
+            } else {
+                Path tmp = jres.resolve(".jre-" + UUID.randomUUID() + ".tmp");
+                List<String> link = new ArrayList<>(cmd);
+                link.addAll(List.of("--output", tmp.toString()));
+                jlinkRuns.incrementAndGet();
+                try {
+                    runCmd(link.toArray(String[]::new));
+                    if (dumpCds) dumpCds(tmp);
+                    Files.move(tmp, cached, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                    // built concurrently by another process
+                } finally {
+                    deleteDir(tmp);
+                }
+            }
+            try {
+                copyTree(cached, out, null);
+                return;
+            } catch (IOException | UncheckedIOException e) {
+                // collected by a gc that checked the last use just before it was marked: link it again
+                if (attempt > 0 || Files.isDirectory(cached)) throw e;
+                deleteDir(out);
+            }
+        }
+    }
+
+    /**
+     * Deletes the JREs cached below cacheDir that were not used since cutoff (epoch millis), as
+     * part of {@link BlobStore#gc}. Returns the number of bytes freed.
+     */
+    static long collectCache(Path cacheDir, long cutoff) throws IOException {
+        Path jres = cacheDir.resolve("jre");
+        if (!Files.isDirectory(jres)) return 0;
+        List<Path> cached;
+        try (var list = Files.list(jres)) {
+            // dot names are JREs being linked or deleted
+            cached = list.filter(p -> Files.isDirectory(p) && !p.getFileName().toString().startsWith(".")).toList();
+        }
+        long freed = 0;
+        for (Path jre : cached) {
+            Path used = jres.resolve(jre.getFileName() + ".used");
+            if (Files.getLastModifiedTime(Files.exists(used) ? used : jre).toMillis() > cutoff) continue;
+            try (var walk = Files.walk(jre)) {
+                freed += walk.filter(p -> Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)).mapToLong(p -> p.toFile().length()).sum();
+            }
+            // moved away first, so that no build sees a partly deleted JRE
+            Path doomed = jres.resolve(".gc-" + UUID.randomUUID());
+            Files.move(jre, doomed, StandardCopyOption.ATOMIC_MOVE);
+            deleteDir(doomed);
+            Files.deleteIfExists(used);
+        }
+        return freed;
+    }
+
+    // Writes the default CDS archive of a linked JRE, as --generate-cds-archive does from JDK 18 on
+    private static void dumpCds(Path jre) throws Exception {
+        runCmd(jre.resolve("bin/java").toString(), "-Xshare:dump");
+    }
+
+    // JDK modules jdeps finds the classes on modulePath using, plus those its explicit modules require
+    static Set<String> usedJdkModules(String modulePath, String releaseInfo) throws Exception {
+        List<String> entries = new ArrayList<>();
+        for (String dir : modulePath.split(File.pathSeparator)) {
+            // a modular JAR, an exploded module or a directory of modules
+            if (Files.isRegularFile(Paths.get(dir)) || Files.exists(Paths.get(dir, "module-info.class"))) {
+                entries.add(dir);
+                continue;
+            }
+            try (var list = Files.list(Paths.get(dir))) {
+                list.sorted().forEach(p -> entries.add(p.toString()));
+            }
+        }
+        List<String> cmd = new ArrayList<>(List.of("jdeps",
+                "--print-module-deps", "--ignore-missing-deps", "--multi-release", String.valueOf(featureVersion(releaseInfo))));
+        cmd.addAll(entries);
+        Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        p.getInputStream().transferTo(output);
+        if (p.waitFor() != 0) throw new RuntimeException("Command failed: " + String.join(" ", cmd));
+
+        Set<String> modules = new TreeSet<>(List.of(output.toString(StandardCharsets.UTF_8).trim().split(",")));
+        modules.remove("");
+        // requires clauses must resolve at startup even if jdeps sees no use, e.g. for reflection
+        ModuleFinder app = ModuleFinder.of(Arrays.stream(modulePath.split(File.pathSeparator)).map(Paths::get).toArray(Path[]::new));
+        for (var ref : app.findAll()) {
+            for (ModuleDescriptor.Requires r : ref.descriptor().requires()) {
+                if (!r.modifiers().contains(ModuleDescriptor.Requires.Modifier.STATIC) && app.find(r.name()).isEmpty()) {
+                    modules.add(r.name());
+                }
+            }
+        }
+        modules.add("java.base");
+        return modules;
+    }
+
+    // What jlink links besides the JDK's own modules: each module path entry with a content hash
+    static String modulePathContents(String modulePath) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : modulePath.split(File.pathSeparator)) {
+            sb.append(entry).append(' ').append(contentHash(Paths.get(entry))).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // SHA-256 over a file, or over the relative paths and contents of a directory's files
+    private static String contentHash(Path location) throws Exception {
+        MessageDigest md = Digests.sha256();
+        List<Path> files;
+        try (var walk = Files.walk(location)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+        for (Path file : files) {
+            md.update((location.relativize(file) + "\n").getBytes(StandardCharsets.UTF_8));
+            Digests.update(md, file);
+        }
+        return Digests.hex(md.digest());
+    }
+
+    // JAVA_VERSION of a JDK release file, e.g. 21 for "21.0.1"; the running JVM's if unknown
+    static int featureVersion(String releaseInfo) {
+        for (String line : releaseInfo.split("\n")) {
+            if (line.startsWith("JAVA_VERSION=")) {
+                String version = line.substring("JAVA_VERSION=".length()).replace("\"", "");
+                return Runtime.Version.parse(version.startsWith("1.") ? version.substring(2) : version).feature();
+            }
+        }
+        return Runtime.version().feature();
     }
 
     static void deleteDir(Path dir) throws IOException {
@@ -46,6 +334,25 @@ public class JREBuilder {
                 });
     }
 
+    // Copies src to dst with attributes and symbolic links, setting every mtime to mtime unless null.
+    // Directory mtimes are set last, as creating their children changes them
+    static void copyTree(Path src, Path dst, FileTime mtime) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        try (var walk = Files.walk(src)) {
+            for (Path from : (Iterable<Path>) walk::iterator) {
+                Path to = dst.resolve(src.relativize(from).toString());
+                Files.copy(from, to, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.COPY_ATTRIBUTES);
+                if (Files.isDirectory(from, LinkOption.NOFOLLOW_LINKS)) dirs.add(from);
+                else if (mtime != null && !Files.isSymbolicLink(to)) Files.setLastModifiedTime(to, mtime);
+            }
+        }
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            Path from = dirs.get(i);
+            Path to = dst.resolve(src.relativize(from).toString());
+            Files.setLastModifiedTime(to, mtime != null ? mtime : Files.getLastModifiedTime(from));
+        }
+    }
+
     static void runCmd(String... cmd) throws Exception {
         ProcessBuilder pb = new ProcessBuilder(cmd);
         pb.inheritIO();
@@ -3,6 +3,8 @@ package com.assense.OCIImageBuilder;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
 
 public class JREBuilderTest {
     public static void main(String[] args) throws Exception {
@@ -32,10 +34,62 @@ public class JREBuilderTest {
             throw new AssertionError("java executable missing in built JRE");
         }
 
+        // --- Cached builds: unchanged inputs skip jlink, a changed app module does not ---
+        String cacheDir = "test-jre-cache";
+        cleanDir(cacheDir);
+        JREBuilder.Options cached = new JREBuilder.Options(JREBuilder.Profile.DEFAULT, false, List.of(), List.of(),
+                Paths.get(cacheDir));
+        int runs = JREBuilder.jlinkRuns.get();
+        JREBuilder.build(moduleDir, moduleName, jreDir, cached);
+        String release = Files.readString(Paths.get(jreDir, "release"));
+        JREBuilder.build(moduleDir, moduleName, jreDir, cached);
+        if (JREBuilder.jlinkRuns.get() != runs + 1) throw new AssertionError("jlink ran for an unchanged JRE");
+        if (!Files.readString(Paths.get(jreDir, "release")).equals(release)) throw new AssertionError("Cached JRE differs");
+        Files.writeString(Paths.get(moduleDir, moduleName.replace('.', '/'), "res.txt"), "changed");
+        JREBuilder.build(moduleDir, moduleName, jreDir, cached);
+        if (JREBuilder.jlinkRuns.get() != runs + 2) throw new AssertionError("Changed module not linked again");
+        try (var list = Files.list(Paths.get(cacheDir, "jre"))) {
+            // one last-use marker per cached JRE, for BlobStore.gc
+            if (list.filter(p -> p.toString().endsWith(".used")).count() != 2) throw new AssertionError("JRE use not recorded");
+        }
+
+        // --- Minimized: only the JDK modules the app uses, independent of the app's code ---
+        JREBuilder.Options minimized = new JREBuilder.Options(JREBuilder.Profile.DEFAULT, true, List.of(), List.of(),
+                Paths.get(cacheDir));
+        JREBuilder.build(moduleDir, moduleName, jreDir, minimized);
+        if (!Files.readString(Paths.get(jreDir, "release")).contains("MODULES=\"java.base\"")) {
+            throw new AssertionError("Not minimized: " + Files.readString(Paths.get(jreDir, "release")));
+        }
+        Files.writeString(Paths.get(moduleDir, moduleName.replace('.', '/'), "res.txt"), "changed again");
+        runs = JREBuilder.jlinkRuns.get();
+        JREBuilder.build(moduleDir, moduleName, jreDir, minimized);
+        if (JREBuilder.jlinkRuns.get() != runs) throw new AssertionError("App change relinked the minimized JRE");
+        // a module path entry may name a modular JAR directly
+        String jar = Paths.get(srcDir, moduleName + ".jar").toString();
+        runCmd("jar", "--create", "--file", jar, "-C", moduleDir, ".");
+        if (!JREBuilder.usedJdkModules(jar, "").equals(Set.of("java.base"))) {
+            throw new AssertionError("JAR on the module path: " + JREBuilder.usedJdkModules(jar, ""));
+        }
+
+        // --- Profiles: startup adds the default CDS archive, size compresses the modules image ---
+        // jlink before 18 has no --generate-cds-archive; the archive is dumped after linking instead
+        if (JREBuilder.Profile.STARTUP.flags(17).contains("--generate-cds-archive")
+                || !JREBuilder.Profile.STARTUP.flags(21).contains("--generate-cds-archive")) {
+            throw new AssertionError("CDS flag not gated on the JDK version");
+        }
+        JREBuilder.build(moduleDir, moduleName, jreDir, new JREBuilder.Options(JREBuilder.Profile.STARTUP, true,
+                List.of(), List.of(), null));
+        if (!Files.exists(Paths.get(jreDir, "lib", "server", "classes.jsa"))) throw new AssertionError("No CDS archive");
+        long defaultSize = Files.size(Paths.get(jreDir, "lib", "modules"));
+        JREBuilder.build(moduleDir, moduleName, jreDir, new JREBuilder.Options(JREBuilder.Profile.SIZE, true,
+                List.of(), List.of(), null));
+        if (Files.size(Paths.get(jreDir, "lib", "modules")) >= defaultSize) throw new AssertionError("Size profile not smaller");
+
         System.out.println("All JREBuilder assertions passed!");
         cleanDir(srcDir);
         cleanDir(moduleDir);
         cleanDir(jreDir);
+        cleanDir(cacheDir);
     }
 
     static void runCmd(String... args) throws Exception {
@@ -0,0 +1,182 @@
+package com.assense.OCIImageBuilder;
+
+import java.util.*;
+
+/**
+ * Just enough JSON for registry manifests, indexes and configs: parses into {@link Map},
+ * {@link List}, {@link String}, {@link Long}/{@link Double}, {@link Boolean} and {@code null}.
+ */
+public final class Json {
+    private final String s;
+    private int pos;
+
+    private Json(String s) {
+        this.s = s;
+    }
+
+    public static Object parse(String json) {
+        Json p = new Json(json);
+        Object value = p.value();
+        p.whitespace();
+        if (p.pos != p.s.length()) throw p.error("Trailing content");
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String json) {
+        Object value = parse(json);
+        if (!(value instanceof Map)) throw new IllegalArgumentException("Expected a JSON object");
+        return (Map<String, Object>) value;
+    }
+
+    /** Quotes and escapes {@code value} as a JSON string literal. */
+    public static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // Typed accessors for navigating parsed documents; missing keys yield null / empty
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> object(Object map, String key) {
+        Object v = map instanceof Map ? ((Map<String, Object>) map).get(key) : null;
+        return v instanceof Map ? (Map<String, Object>) v : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<Object> array(Object map, String key) {
+        Object v = map instanceof Map ? ((Map<String, Object>) map).get(key) : null;
+        return v instanceof List ? (List<Object>) v : List.of();
+    }
+
+    public static String string(Object map, String key) {
+        Object v = map instanceof Map<?, ?> m ? m.get(key) : null;
+        return v instanceof String str ? str : null;
+    }
+
+    public static long number(Object map, String key) {
+        Object v = map instanceof Map<?, ?> m ? m.get(key) : null;
+        return v instanceof Number n ? n.longValue() : -1;
+    }
+
+    private Object value() {
+        whitespace();
+        if (pos >= s.length()) throw error("Unexpected end");
+        char c = s.charAt(pos);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': literal("true"); return Boolean.TRUE;
+            case 'f': literal("false"); return Boolean.FALSE;
+            case 'n': literal("null"); return null;
+            default: return number();
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        pos++;
+        whitespace();
+        if (consume('}')) return map;
+        do {
+            whitespace();
+            if (s.charAt(pos) != '"') throw error("Expected key");
+            String key = string();
+            whitespace();
+            expect(':');
+            map.put(key, value());
+            whitespace();
+        } while (consume(','));
+        expect('}');
+        return map;
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        pos++;
+        whitespace();
+        if (consume(']')) return list;
+        do {
+            list.add(value());
+            whitespace();
+        } while (consume(','));
+        expect(']');
+        return list;
+    }
+
+    private String string() {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= s.length()) throw error("Unterminated string");
+            char c = s.charAt(pos++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char e = s.charAt(pos++);
+            switch (e) {
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'u' -> {
+                    sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    pos += 4;
+                }
+                default -> sb.append(e);
+            }
+        }
+    }
+
+    private Object number() {
+        int start = pos;
+        while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+        String n = s.substring(start, pos);
+        if (n.isEmpty()) throw error("Unexpected character");
+        if (n.contains(".") || n.contains("e") || n.contains("E")) return Double.parseDouble(n);
+        return Long.parseLong(n);
+    }
+
+    private void literal(String word) {
+        if (!s.startsWith(word, pos)) throw error("Expected " + word);
+        pos += word.length();
+    }
+
+    private void whitespace() {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+    }
+
+    private boolean consume(char c) {
+        if (pos < s.length() && s.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) throw error("Expected '" + c + "'");
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg + " at offset " + pos + " of JSON document");
+    }
+}
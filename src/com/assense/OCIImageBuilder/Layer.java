@@ -0,0 +1,34 @@
+package com.assense.OCIImageBuilder;
+
+/**
+ * A layer blob as referenced from a manifest and config.
+ *
+ * @param mediaType media type of the blob, e.g. {@code application/vnd.oci.image.layer.v1.tar}
+ * @param digest    digest of the blob as stored (hex, no 'sha256:')
+ * @param diffId    digest of the uncompressed tar, with 'sha256:' prefix
+ * @param size      size of the blob in bytes
+ */
+public record Layer(String mediaType, String digest, String diffId, long size) {
+    public static final String MEDIA_TYPE_TAR = "application/vnd.oci.image.layer.v1.tar";
+    public static final String MEDIA_TYPE_TAR_GZIP = "application/vnd.oci.image.layer.v1.tar+gzip";
+
+    /** How layer tars are stored as blobs. */
+    public enum Compression {
+        NONE(MEDIA_TYPE_TAR),
+        GZIP(MEDIA_TYPE_TAR_GZIP);
+
+        public final String mediaType;
+
+        Compression(String mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        public static Compression parse(String name) {
+            return switch (name) {
+                case "none", "tar" -> NONE;
+                case "gzip", "tar+gzip" -> GZIP;
+                default -> throw new IllegalArgumentException("Unsupported compression: " + name + " (use none or gzip)");
+            };
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Persistent, content-addressed cache of built layers, so unchanged source trees (typically the
+ * JRE) are not archived and hashed again on every build.
+ * <p>
+ * A layer is keyed by a fingerprint of its source tree (paths, types, sizes, mtimes, modes,
+ * ownership, link targets and optionally file contents) plus everything else that influences the
+ * archive bytes. Layer blobs live in the {@link BlobStore}; below its root
+ * {@code layers/<key>.properties} records mediaType, digest, diffId and size of the layer built
+ * for a key, and {@code incremental/} holds the per-file indexes of {@link IncrementalLayer}.
+ */
+public class LayerCache {
+    // bump when the archive format changes, so old entries are no longer hit
+    static final String FORMAT_VERSION = "1";
+
+    final BlobStore store;
+    final Path layers;
+    final boolean hashContents;
+
+    public LayerCache(BlobStore store, boolean hashContents) throws IOException {
+        this.store = store;
+        this.layers = store.root.resolve("layers");
+        this.hashContents = hashContents;
+        Files.createDirectories(layers);
+    }
+
+    /** {@code $XDG_CACHE_HOME/oci-image-builder}, falling back to {@code ~/.cache/oci-image-builder}. */
+    public static Path defaultRoot() {
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        Path base = xdg != null && !xdg.isBlank()
+                ? Paths.get(xdg) : Paths.get(System.getProperty("user.home"), ".cache");
+        return base.resolve("oci-image-builder");
+    }
+
+    /**
+     * Computes the cache key for archiving {@code srcDir} at {@code targetDir}. {@code options}
+     * describes any further setting that changes the archive bytes (e.g. reproducible mtime).
+     */
+    public String key(Path srcDir, String targetDir, String options) throws Exception {
+        return key(srcDir, targetDir, options, null);
+    }
+
+    /**
+     * Computes the cache key for archiving the part of {@code srcDir} selected by {@code include}
+     * (see {@link TarWriter#addTree(Path, String, Predicate)}); excluded files do not affect it.
+     */
+    public String key(Path srcDir, String targetDir, String options, Predicate<Path> include) throws Exception {
+        MessageDigest md = Digests.sha256();
+        md.update(("v" + FORMAT_VERSION + "\n" + targetDir + "\n" + options + "\n").getBytes(StandardCharsets.UTF_8));
+        fingerprint(md, srcDir, srcDir, include);
+        return Digests.hex(md.digest());
+    }
+
+    /**
+     * Where the per-file index of the latest build of a directory layer is kept (see
+     * {@link IncrementalLayer}): one per source directory, target, options and app layer part.
+     */
+    public Path indexFile(Path srcDir, String targetDir, String options, String part) throws Exception {
+        String slot = srcDir.toAbsolutePath().normalize() + "\n" + targetDir + "\n" + options + "\n" + part;
+        return store.root.resolve("incremental").resolve(key(slot) + ".tsv");
+    }
+
+    /** Computes the cache key for a layer fully determined by {@code description} (e.g. a manifest digest). */
+    public String key(String description) throws Exception {
+        return Digests.sha256(("v" + FORMAT_VERSION + "\n" + description).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Directories always count, as their metadata ends up in the archive; excluded files only by name
+    private void fingerprint(MessageDigest md, Path root, Path dir, Predicate<Path> include) throws Exception {
+        List<Path> children;
+        try (var stream = Files.list(dir)) {
+            children = stream.sorted(Comparator.comparing(p -> p.getFileName().toString())).toList();
+        }
+        for (Path child : children) {
+            Path relative = root.relativize(child);
+            boolean included = include == null || include.test(relative);
+            if (!included && !Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                md.update(("-" + relative + "\n").getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            Map<String, Object> attrs = TarWriter.readAttributes(child);
+            StringBuilder line = new StringBuilder(included ? "" : "-").append(relative)
+                    .append('\0').append(attrs.get("isDirectory")).append(attrs.get("isSymbolicLink"))
+                    .append('\0').append(attrs.get("size"))
+                    .append('\0').append(((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS))
+                    .append('\0').append(attrs.get("mode"))
+                    .append('\0').append(attrs.get("uid")).append(':').append(attrs.get("gid"))
+                    .append('\0').append(attrs.get("nlink"));
+            if (Boolean.TRUE.equals(attrs.get("isSymbolicLink"))) {
+                line.append('\0').append(Files.readSymbolicLink(child));
+            }
+            md.update(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            if (hashContents && Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+                MessageDigest content = Digests.sha256();
+                Digests.update(content, child);
+                md.update(content.digest());
+            }
+            if (Boolean.TRUE.equals(attrs.get("isDirectory"))) fingerprint(md, root, child, include);
+        }
+    }
+
+    /**
+     * Looks up the layer built for {@code key}, whose blob is in the store on a hit and marked as used,
+     * so that a concurrent garbage collection does not delete it before the build links it. Entries
+     * whose blob went missing or changed size count as misses.
+     */
+    public Optional<Layer> fetch(String key) throws IOException {
+        Optional<Layer> layer = lookup(key);
+        (layer.isPresent() ? BuildMetrics.current().cacheHits : BuildMetrics.current().cacheMisses).incrementAndGet();
+        return layer;
+    }
+
+    private Optional<Layer> lookup(String key) throws IOException {
+        Path entry = layers.resolve(key + ".properties");
+        if (!Files.exists(entry)) return Optional.empty();
+        Layer layer = read(entry);
+        if (!store.markUsed(layer.digest(), layer.size(), layer.mediaType())) return Optional.empty();
+        return Optional.of(layer);
+    }
+
+    /** Records {@code layer}, whose blob already is in the store, as the result for {@code key}. */
+    public void store(String key, Layer layer) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("mediaType", layer.mediaType());
+        props.setProperty("digest", layer.digest());
+        props.setProperty("diffId", layer.diffId());
+        props.setProperty("size", Long.toString(layer.size()));
+        Path tmp = layers.resolve("." + key + "-" + UUID.randomUUID() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            props.store(w, null);
+        }
+        Files.move(tmp, layers.resolve(key + ".properties"), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Removes entries whose blob was garbage collected from the store
+    static void dropEntriesWithoutBlobs(Path layers, BlobStore store) throws IOException {
+        if (!Files.isDirectory(layers)) return;
+        List<Path> entries;
+        try (var stream = Files.list(layers)) {
+            entries = stream.filter(p -> p.getFileName().toString().endsWith(".properties")).toList();
+        }
+        for (Path entry : entries) {
+            if (!store.contains(read(entry).digest())) Files.deleteIfExists(entry);
+        }
+    }
+
+    private static Layer read(Path entry) throws IOException {
+        Properties props = new Properties();
+        try (Reader r = Files.newBufferedReader(entry, StandardCharsets.UTF_8)) {
+            props.load(r);
+        }
+        return new Layer(props.getProperty("mediaType"), props.getProperty("digest"),
+                props.getProperty("diffId"), Long.parseLong(props.getProperty("size", "-1")));
+    }
+
+    // Hard-links src to dst (both immutable blobs, dst named by its digest), copying when links are not
+    // possible (e.g. across devices). An existing dst is kept if it is src or a copy with src's size and
+    // modification time; otherwise it is replaced, as it may link to (or copy) a blob the store found
+    // corrupt and rewrote (see BlobStore.verify). Comparing attributes keeps copies from being rehashed;
+    // in milliseconds, as copied times may be truncated
+    static void linkOrCopy(Path src, Path dst) throws IOException {
+        if (Files.exists(dst)) {
+            if (Files.isSameFile(src, dst) || Files.size(dst) == Files.size(src)
+                    && Files.getLastModifiedTime(dst).toMillis() == Files.getLastModifiedTime(src).toMillis()) {
+                return;
+            }
+        } else {
+            try {
+                Files.createLink(dst, src);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // a concurrent build got there first; the content is identical by construction
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // copy below
+            }
+        }
+        Path tmp = dst.resolveSibling("." + dst.getFileName() + "-" + UUID.randomUUID() + ".tmp");
+        try {
+            try {
+                Files.createLink(tmp, src);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(src, tmp, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+
+public class LayerCacheTest {
+    public static void main(String[] args) throws Exception {
+        String srcDir = "test-cache-src";
+        String cacheDir = "test-cache";
+        cleanDir(srcDir);
+        cleanDir(cacheDir);
+
+        Path src = Paths.get(srcDir);
+        Files.createDirectories(src.resolve("lib"));
+        Files.writeString(src.resolve("lib/modules"), "modules");
+        BlobStore store = new BlobStore(Paths.get(cacheDir));
+        LayerCache cache = new LayerCache(store, false);
+
+        // --- 1. Miss, build, store ---
+        Layer first = OCIImageBuilder.buildDirLayer(cache, store.blobs, srcDir, "/opt/jre", 0L, Layer.Compression.NONE);
+        String key = cache.key(src, "/opt/jre", "epoch=0,compression=NONE");
+        if (!store.contains(first.digest())) throw new AssertionError("blob not in store");
+
+        // --- 2. Hit returns the stored layer without rebuilding ---
+        Layer hit = cache.fetch(key).orElseThrow(() -> new AssertionError("expected cache hit"));
+        if (!hit.equals(first)) throw new AssertionError("cached layer differs: " + hit + " vs " + first);
+        Layer again = OCIImageBuilder.buildDirLayer(cache, store.blobs, srcDir, "/opt/jre", 0L, Layer.Compression.NONE);
+        if (!again.equals(first)) throw new AssertionError("rebuild differs: " + again);
+
+        // --- 3. Any change to the tree or options is a miss ---
+        if (cache.key(src, "/opt/jre", "epoch=null,compression=NONE").equals(key)) throw new AssertionError("options ignored");
+        Files.writeString(src.resolve("lib/modules"), "modules2");
+        if (cache.key(src, "/opt/jre", "epoch=0,compression=NONE").equals(key)) throw new AssertionError("change not detected");
+
+        // --- 4. A lost blob invalidates the entry ---
+        Files.delete(store.path(first.digest()));
+        if (cache.fetch(key).isPresent()) throw new AssertionError("entry without blob was hit");
+
+        System.out.println("All LayerCache assertions passed!");
+        cleanDir(srcDir);
+        cleanDir(cacheDir);
+    }
+
+    static void cleanDir(String dir) throws IOException {
+        Path d = Paths.get(dir);
+        if (Files.exists(d)) Files.walk(d)
+                .sorted(Comparator.reverseOrder())
+                .forEach(path -> {
+                    try { Files.delete(path); } catch (IOException ignored) {}
+                });
+    }
+}
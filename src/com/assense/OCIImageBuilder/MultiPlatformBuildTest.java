@@ -0,0 +1,89 @@
+package com.assense.OCIImageBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class MultiPlatformBuildTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-multiplatform-work";
+        RegistryClientTest.cleanDir(workDir);
+        Path work = Files.createDirectories(Paths.get(workDir));
+        Path base = Files.createDirectories(work.resolve("base/etc"));
+        Files.writeString(base.resolve("hello"), "hi");
+        for (String arch : List.of("amd64", "arm64")) {
+            Files.createDirectories(work.resolve("jre-" + arch + "/bin"));
+            Files.writeString(work.resolve("jre-" + arch + "/bin/java"), arch);
+        }
+        Files.createDirectories(work.resolve("app/m"));
+        Files.writeString(work.resolve("app/m/A.class"), "cls");
+
+        try (TestRegistry registry = new TestRegistry()) {
+            // --- 1. Base image index with one manifest per architecture ---
+            String layer = registry.putBlob(RegistryClientTest.gzipTar(work.resolve("base")));
+            String config = registry.putBlob("{ \"rootfs\": { \"type\": \"layers\", \"diff_ids\": [\"sha256:x\"] } }".getBytes());
+            String manifest = """
+                    { "schemaVersion": 2, "mediaType": "application/vnd.oci.image.manifest.v1+json",
+                      "config": { "mediaType": "application/vnd.oci.image.config.v1+json", "digest": "%s" },
+                      "layers": [ { "mediaType": "application/vnd.oci.image.layer.v1.tar+gzip", "digest": "%s" } ] }
+                    """.formatted(config, layer);
+            String amd64 = registry.putManifest("base", "amd64", RegistryClient.OCI_MANIFEST, manifest);
+            String arm64 = registry.putManifest("base", "arm64", RegistryClient.OCI_MANIFEST, manifest + " ");
+            registry.putManifest("base", "latest", RegistryClient.OCI_INDEX, """
+                    { "schemaVersion": 2, "manifests": [
+                      { "digest": "%s", "platform": { "architecture": "amd64", "os": "linux" } },
+                      { "digest": "%s", "platform": { "architecture": "arm64", "os": "linux", "variant": "v8" } } ] }
+                    """.formatted(amd64, arm64));
+
+            // --- 2. Variant matching ---
+            RegistryClient client = new RegistryClient(registry.host());
+            if (!client.platformManifest("base", "latest", Platform.parse("linux/arm64")).digest().equals(arm64)) {
+                throw new AssertionError("arm64 without variant not matched");
+            }
+            try {
+                client.platformManifest("base", "latest", Platform.parse("linux/arm64/v7"));
+                throw new AssertionError("wrong variant matched");
+            } catch (java.io.IOException expected) {
+                // no such platform
+            }
+
+            // --- 3. One run builds both platforms ---
+            Path out = work.resolve("out");
+            OCIImageBuilder.main(new String[]{
+                    "--base", registry.host() + "/base:latest",
+                    "--platform", "linux/amd64=" + work.resolve("jre-amd64"),
+                    "--platform", "linux/arm64/v8=" + work.resolve("jre-arm64"),
+                    "--app", work.resolve("app").toString(), "--module", "m",
+                    "--out", out.toString(), "--no-cache", "--reproducible"});
+
+            // --- 4. index.json tags a nested index with one manifest per platform ---
+            Path blobs = out.resolve("blobs/sha256");
+            Object tagged = Json.array(Json.parseObject(Files.readString(out.resolve("index.json"))), "manifests").get(0);
+            if (!RegistryClient.OCI_INDEX.equals(Json.string(tagged, "mediaType"))) throw new AssertionError("not an index: " + tagged);
+            List<Object> manifests = Json.array(read(blobs, Json.string(tagged, "digest")), "manifests");
+            if (manifests.size() != 2) throw new AssertionError("Expected 2 manifests, got " + manifests);
+
+            // --- 5. Per-platform config and JRE, shared app layer ---
+            List<List<Object>> layers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                Map<String, Object> platform = Json.object(manifests.get(i), "platform");
+                Map<String, Object> image = read(blobs, Json.string(manifests.get(i), "digest"));
+                Map<String, Object> imageConfig = read(blobs, Json.string(Json.object(image, "config"), "digest"));
+                if (!Json.string(imageConfig, "architecture").equals(Json.string(platform, "architecture"))) {
+                    throw new AssertionError("config architecture differs from index platform");
+                }
+                layers.add(Json.array(image, "layers").stream().map(l -> (Object) Json.string(l, "digest")).toList());
+            }
+            if (!"v8".equals(Json.string(Json.object(manifests.get(1), "platform"), "variant"))) throw new AssertionError("variant lost");
+            if (!layers.get(0).get(2).equals(layers.get(1).get(2))) throw new AssertionError("app layer not shared: " + layers);
+            if (layers.get(0).get(1).equals(layers.get(1).get(1))) throw new AssertionError("JRE layers identical: " + layers);
+        }
+
+        System.out.println("All MultiPlatformBuild assertions passed!");
+        RegistryClientTest.cleanDir(workDir);
+    }
+
+    private static Map<String, Object> read(Path blobs, String digest) throws Exception {
+        return Json.parseObject(Files.readString(blobs.resolve(digest.substring("sha256:".length())), StandardCharsets.UTF_8));
+    }
+}
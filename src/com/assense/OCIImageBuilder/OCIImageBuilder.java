@@ -3,170 +3,347 @@ package com.assense.OCIImageBuilder;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 
 public class OCIImageBuilder {
     static final String DISTROLESS_IMAGE = "gcr.io/distroless/base:latest";
+    static final int BUFFER_SIZE = 1 << 16;
+    static final String CONFIG_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+
+    /** Producer of blob content, written to the given stream exactly once. */
+    interface BlobContent {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /** Settings of the command line that apply to the builder, and thus to all builds of a batch. */
+    static final class Settings {
+        Path cacheDir = LayerCache.defaultRoot();
+        boolean useCache = true, cacheContentHash = false, gc = false, verify = false;
+        int jobs = Runtime.getRuntime().availableProcessors(), gcMaxAgeDays = 14, parallel = 4;
+        String batch;
+    }
 
     public static void main(String[] args) throws Exception {
         if (args.length == 0 || Arrays.asList(args).contains("--help")) {
             printHelp();
             System.exit(0);
         }
-        String jreDir = null, appDir = null, moduleName = null, outDir = "oci-image";
+        Settings settings = new Settings();
+        ImageSpec.Builder spec = ImageSpec.builder();
+        ImageBuilder builder = null;
+        try {
+            parseArgs(args, spec, settings);
+            builder = new ImageBuilder(settings.useCache ? settings.cacheDir : null, settings.cacheContentHash,
+                    settings.jobs);
+        } catch (IllegalArgumentException e) {
+            fail(e.getMessage());
+        }
+        // before any build, so that a corrupt cached layer is rebuilt instead of reused
+        if (settings.verify) builder.verifyStore();
+        if (settings.batch != null) {
+            if (spec.hasInputs()) fail("--batch takes the images from its file; do not also give --jre/--app/--module.");
+            int failed = runBatch(builder, settings.batch, settings.parallel);
+            if (settings.gc) builder.collectGarbage(Duration.ofDays(settings.gcMaxAgeDays));
+            if (failed > 0) {
+                System.err.println(failed + " image(s) failed");
+                System.exit(1);
+            }
+            return;
+        }
+        if ((settings.gc || settings.verify) && !spec.hasInputs()) {
+            // maintenance run: only verify the blob store and collect garbage in it
+            if (settings.gc) builder.collectGarbage(Duration.ofDays(settings.gcMaxAgeDays));
+            return;
+        }
+        ImageSpec image = null;
+        try {
+            image = spec.build();
+        } catch (IllegalArgumentException e) {
+            fail(e.getMessage());
+        }
+        ImageResult result = builder.build(image);
+        System.out.println("\nOCI image " + (image.format() == ImageArchive.Format.OCI ? "created at: " : "archive written to: ")
+                + result.out().toAbsolutePath() + " (" + result.digest() + ")");
+        System.out.println("Inspect or load with umoci, skopeo, or podman. See --help for details.");
+        if (settings.gc) builder.collectGarbage(Duration.ofDays(settings.gcMaxAgeDays));
+    }
+
+    // Applies command line arguments to spec and settings. Without settings (a line of a batch
+    // file), options of the builder are rejected, as they apply to the whole batch
+    static void parseArgs(String[] args, ImageSpec.Builder spec, Settings settings) {
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
-                case "--jre":
-                    if (i + 1 >= args.length) fail("Missing value for --jre");
-                    jreDir = args[++i];
-                    break;
-                case "--app":
-                    if (i + 1 >= args.length) fail("Missing value for --app");
-                    appDir = args[++i];
-                    break;
-                case "--module":
-                    if (i + 1 >= args.length) fail("Missing value for --module");
-                    moduleName = args[++i];
-                    break;
-                case "--out":
-                    if (i + 1 >= args.length) fail("Missing value for --out");
-                    outDir = args[++i];
-                    break;
-                default:
-                    fail("Unknown argument: " + args[i]);
+                case "--jre" -> spec.jre(Paths.get(value(args, ++i)));
+                case "--platform" -> {
+                    String platform = value(args, ++i);
+                    int eq = platform.indexOf('=');
+                    if (eq < 0) throw new IllegalArgumentException("--platform expects <os/arch[/variant]>=<jre-dir>, got " + platform);
+                    spec.platform(Platform.parse(platform.substring(0, eq)), Paths.get(platform.substring(eq + 1)));
+                }
+                case "--app" -> spec.app(Paths.get(value(args, ++i)));
+                case "--app-layer" -> spec.appLayer(AppLayering.Rule.parse(value(args, ++i)));
+                case "--module" -> spec.module(value(args, ++i));
+                case "--cds" -> spec.cds(true);
+                case "--cds-training-args" -> spec.cdsTrainingArgs(List.of(value(args, ++i).trim().split("\\s+")));
+                case "--cds-training-timeout" -> spec.cdsTrainingTimeout(Duration.ofSeconds(Integer.parseInt(value(args, ++i))));
+                case "--reproducible" -> spec.reproducible();
+                case "--base" -> spec.base(value(args, ++i));
+                case "--preserve-base-layers" -> spec.preserveBaseLayers(true);
+                case "--compression" -> spec.compression(Layer.Compression.parse(value(args, ++i)));
+                case "--push" -> spec.push(value(args, ++i));
+                case "--mount-from" -> spec.mountFrom(value(args, ++i));
+                case "--format" -> spec.format(ImageArchive.Format.parse(value(args, ++i)));
+                case "--tag" -> spec.tag(value(args, ++i));
+                case "--out" -> spec.out(Paths.get(value(args, ++i)));
+                case "--metrics" -> spec.metrics(Paths.get(value(args, ++i)));
+                case "--cache-dir" -> settings(settings, args[i]).cacheDir = Paths.get(value(args, ++i));
+                case "--no-cache" -> settings(settings, args[i]).useCache = false;
+                case "--cache-content-hash" -> settings(settings, args[i]).cacheContentHash = true;
+                case "--gc" -> settings(settings, args[i]).gc = true;
+                case "--verify" -> settings(settings, args[i]).verify = true;
+                case "--gc-max-age" -> settings(settings, args[i]).gcMaxAgeDays = Integer.parseInt(value(args, ++i));
+                case "--jobs" -> settings(settings, args[i]).jobs = Integer.parseInt(value(args, ++i));
+                case "--batch" -> settings(settings, args[i]).batch = value(args, ++i);
+                case "--parallel" -> {
+                    int parallel = Integer.parseInt(value(args, ++i));
+                    if (parallel < 1) throw new IllegalArgumentException("--parallel must be at least 1");
+                    settings(settings, args[i - 1]).parallel = parallel;
+                }
+                default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
             }
         }
-        if (jreDir == null || appDir == null || moduleName == null) {
-            fail("Missing required arguments.");
-        }
+    }
 
-        Path OUT = Paths.get(outDir);
-        Path BLOBS = OUT.resolve("blobs/sha256");
-        Files.createDirectories(BLOBS);
+    // The value of the option before args[i]
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+    }
 
-        // Step 1: oci-layout
-        Files.writeString(OUT.resolve("oci-layout"),
-                "{ \"imageLayoutVersion\": \"1.0.0\" }\n", StandardCharsets.UTF_8);
+    private static Settings settings(Settings settings, String option) {
+        if (settings == null) throw new IllegalArgumentException(option + " applies to the whole batch; give it on the command line");
+        return settings;
+    }
 
-        // Step 2: Download distroless base layer without crane (assume one layer)
-        String baseLayerTar = outDir + "/base-layer.tar";
-        Path baseLayerPath = Paths.get(baseLayerTar);
-        if (!Files.exists(baseLayerPath)) {
-            System.out.println("Downloading base layer from " + DISTROLESS_IMAGE + " via registry API...");
-            downloadDistrolessBaseLayer(baseLayerTar);
-        } else {
-            System.out.println("Base layer tar already present, skipping download.");
+    /**
+     * Builds the images of a batch file, one line of image arguments (as on the command line, see
+     * {@link #splitLine}) each, up to parallel at once in this JVM. With "-" the lines are read from
+     * standard input and built as they arrive, until it is closed. Blank lines and lines starting
+     * with # are skipped, and a line whose --out another line already uses fails. Returns the number
+     * of images that failed.
+     */
+    static int runBatch(ImageBuilder builder, String batch, int parallel) throws Exception {
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService builds = Executors.newFixedThreadPool(parallel);
+        // outputs of the lines accepted so far, so that no two builds write the same layout or archive
+        Map<Path, String> outs = new HashMap<>();
+        try (BufferedReader in = batch.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(batch), StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            for (String line; (line = in.readLine()) != null; ) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String name = batch + ":" + lineNumber;
+                ImageSpec spec;
+                try {
+                    ImageSpec.Builder b = ImageSpec.builder();
+                    parseArgs(splitLine(line), b, null);
+                    spec = b.build();
+                    String other = outs.putIfAbsent(spec.out().toAbsolutePath().normalize(), name);
+                    if (other != null) throw new IllegalArgumentException("--out " + spec.out() + " is already built by " + other);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Failed " + name + ": " + e.getMessage());
+                    failed.incrementAndGet();
+                    continue;
+                }
+                builds.execute(() -> {
+                    try {
+                        ImageResult result = builder.build(spec);
+                        System.out.println("Built " + name + ": " + result.out() + " " + result.digest());
+                    } catch (Exception e) {
+                        System.err.println("Failed " + name + ": " + e);
+                        failed.incrementAndGet();
+                    }
+                });
+            }
+        } finally {
+            builds.shutdown();
+            builds.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         }
+        return failed.get();
+    }
+
+    // Splits a batch line into arguments at whitespace. Single or double quotes keep whitespace in an
+    // argument, as in --cds-training-args "serve --port 8080"; there are no escapes
+    static String[] splitLine(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = null;
+        char quote = 0;
+        for (char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                else arg.append(c);
+            } else if (Character.isWhitespace(c)) {
+                if (arg != null) args.add(arg.toString());
+                arg = null;
+            } else {
+                if (arg == null) arg = new StringBuilder();
+                if (c == '"' || c == '\'') quote = c;
+                else arg.append(c);
+            }
+        }
+        if (quote != 0) throw new IllegalArgumentException("Unterminated " + quote + " quote");
+        if (arg != null) args.add(arg.toString());
+        return args.toArray(String[]::new);
+    }
+
+    // Image config for one platform; the app is launched from the module path
+    static String configJson(Platform platform, List<Layer> layers, String moduleName) {
+        return configJson(platform, layers, entrypoint(moduleName, null));
+    }
 
-        // Compute digest and diff_id for base layer
-        byte[] baseLayerTarBytes = Files.readAllBytes(baseLayerPath);
-        String baseLayerDigest = sha256Hex(baseLayerTarBytes);
-        String baseLayerDiffId = "sha256:" + baseLayerDigest;
-        Files.write(BLOBS.resolve(baseLayerDigest), baseLayerTarBytes);
-        Files.deleteIfExists(baseLayerPath);
-
-        // Step 3: JRE layer as /opt/jre
-        String jreTar = outDir + "/jre.tar";
-        createTarWithDir(jreDir, "/opt/jre", jreTar);
-        Path jreTarPath = Paths.get(jreTar);
-        byte[] jreTarBytes = Files.readAllBytes(jreTarPath);
-        String jreLayerDigest = sha256Hex(jreTarBytes);
-        String jreLayerDiffId = "sha256:" + jreLayerDigest;
-        Files.write(BLOBS.resolve(jreLayerDigest), jreTarBytes);
-        Files.deleteIfExists(jreTarPath);
-
-        // Step 4: App layer as /opt/app
-        String appTar = outDir + "/app.tar";
-        createTarWithDir(appDir, "/opt/app", appTar);
-        Path appTarPath = Paths.get(appTar);
-        byte[] appTarBytes = Files.readAllBytes(appTarPath);
-        String appLayerDigest = sha256Hex(appTarBytes);
-        String appLayerDiffId = "sha256:" + appLayerDigest;
-        Files.write(BLOBS.resolve(appLayerDigest), appTarBytes);
-        Files.deleteIfExists(appTarPath);
-
-        // Step 5: config.json with proper diff_ids
-        String configJson = """
+    static String configJson(Platform platform, List<Layer> layers, List<String> entrypoint) {
+        String diffIds = layers.stream().map(l -> "      \"" + l.diffId() + "\"").collect(Collectors.joining(",\n"));
+        return """
         {
-          "architecture": "amd64",
-          "os": "linux",
+          "architecture": %s,
+          "os": %s,%s
           "rootfs": { "type": "layers", "diff_ids": [
-              "%s",
-              "%s",
-              "%s"
+        %s
           ] },
           "config": {
             "Env": [],
-            "Entrypoint": ["/opt/jre/bin/java", "-p", "/opt/app", "-m", "%s/%s.HelloWorld"]
+            "Entrypoint": [%s]
           }
         }
-        """.formatted(baseLayerDiffId, jreLayerDiffId, appLayerDiffId, moduleName, moduleName);
-        String configDigest = writeBlob(configJson, BLOBS);
+        """.formatted(Json.quote(platform.architecture()), Json.quote(platform.os()),
+                platform.variant() != null ? "\n  \"variant\": " + Json.quote(platform.variant()) + "," : "",
+                diffIds, entrypoint.stream().map(Json::quote).collect(Collectors.joining(", ")));
+    }
+
+    // Command the image runs, with the given -XX:SharedArchiveFile option unless null
+    static List<String> entrypoint(String moduleName, String sharedArchiveOption) {
+        List<String> command = new ArrayList<>(List.of("/opt/jre/bin/java"));
+        if (sharedArchiveOption != null) command.add(sharedArchiveOption);
+        command.addAll(List.of("-p", "/opt/app", "-m", mainClass(moduleName)));
+        return command;
+    }
 
-        // Step 6: manifest.json
-        String manifestJson = String.format("""
+    static String mainClass(String moduleName) {
+        return moduleName + "/" + moduleName + ".HelloWorld";
+    }
+
+    static String manifestJson(String configDescriptor, List<Layer> layers) {
+        String layerDescriptors = layers.stream()
+                .map(l -> descriptor(l.mediaType(), l.digest(), l.size()).indent(4).stripTrailing())
+                .collect(Collectors.joining(",\n"));
+        return """
         {
           "schemaVersion": 2,
-          "config": {
-            "mediaType": "application/vnd.oci.image.config.v1+json",
-            "digest": "sha256:%s",
-            "size": %d
-          },
+          "mediaType": "application/vnd.oci.image.manifest.v1+json",
+          "config": %s,
           "layers": [
-            {
-              "mediaType": "application/vnd.oci.image.layer.v1.tar",
-              "digest": "sha256:%s",
-              "size": %d
-            },
-            {
-              "mediaType": "application/vnd.oci.image.layer.v1.tar",
-              "digest": "sha256:%s",
-              "size": %d
-            },
-            {
-              "mediaType": "application/vnd.oci.image.layer.v1.tar",
-              "digest": "sha256:%s",
-              "size": %d
-            }
+        %s
           ]
         }
-        """,
-                configDigest, Files.size(BLOBS.resolve(configDigest)),
-                baseLayerDigest, Files.size(BLOBS.resolve(baseLayerDigest)),
-                jreLayerDigest, Files.size(BLOBS.resolve(jreLayerDigest)),
-                appLayerDigest, Files.size(BLOBS.resolve(appLayerDigest))
-        );
-        String manifestDigest = writeBlob(manifestJson, BLOBS);
+        """.formatted(configDescriptor.indent(2).strip(), layerDescriptors);
+    }
 
-        // Step 7: index.json
-        String indexJson = String.format("""
+    // An image index (also the format of index.json) listing the given descriptors
+    static String indexJson(List<String> descriptors) {
+        return """
         {
           "schemaVersion": 2,
+          "mediaType": "application/vnd.oci.image.index.v1+json",
           "manifests": [
-            {
-              "mediaType": "application/vnd.oci.image.manifest.v1+json",
-              "digest": "sha256:%s",
-              "size": %d,
-              "annotations": { "org.opencontainers.image.ref.name": "latest" }
-            }
+        %s
           ]
         }
-        """, manifestDigest, Files.size(BLOBS.resolve(manifestDigest)));
-        Files.writeString(OUT.resolve("index.json"), indexJson);
+        """.formatted(descriptors.stream().map(d -> d.indent(4).stripTrailing()).collect(Collectors.joining(",\n")));
+    }
 
-        System.out.println("\nOCI image created at: " + OUT.toAbsolutePath());
-        System.out.println("Inspect or load with umoci, skopeo, or podman. See --help for details.");
+    // A content descriptor; extraMembers are further JSON members such as "platform"
+    static String descriptor(String mediaType, String digest, long size, String... extraMembers) {
+        StringBuilder sb = new StringBuilder("{\n  \"mediaType\": \"" + mediaType + "\",\n  \"digest\": \"sha256:"
+                + digest + "\",\n  \"size\": " + size);
+        for (String member : extraMembers) sb.append(",\n  ").append(member);
+        return sb.append("\n}").toString();
     }
 
     static void printHelp() {
         System.out.println("""
-        OCIImageBuilder - Minimal OCI Image Builder (with Distroless Base using crane)
-        -----------------------------------------------------------------------------
-        Builds a three-layer OCI image for a Java app: distroless base (from crane), custom JRE, application code.
+        OCIImageBuilder - Minimal OCI Image Builder (with Distroless Base from the registry API)
+        ---------------------------------------------------------------------------------------
+        Builds a layered OCI image for a Java app: distroless base (from the registry), custom JRE, dependencies, application code.
 
         Usage:
-          java com.assense.OCIImageBuilder.OCIImageBuilder --jre <custom-jre-dir> --app <app-layer-dir> --module <module-name> [--out <output-dir>]
+          java com.assense.OCIImageBuilder.OCIImageBuilder --jre <custom-jre-dir> --app <app-layer-dir> --module <module-name> [--out <output-dir>] [options]
+          java com.assense.OCIImageBuilder.OCIImageBuilder --batch <file|-> [--parallel <n>] [cache options]
+
+        Options:
+          --platform <os/arch[/variant]>=<jre-dir>
+                                Build for this platform with a JRE for it, instead of --jre (linux/amd64).
+                                Repeat for a multi-platform image: platforms are built in parallel, the app
+                                layer is shared, and the image is tagged as an image index
+          --base <image>        Base image reference (default: gcr.io/distroless/base:latest)
+          --app-layer <name>=<glob>[,<glob>...]
+                                Put the app files matching a glob (relative to --app) into their own layer,
+                                below the application layer; repeatable, most stable first. Without rules,
+                                module path JARs other than --module go to a dependencies layer
+          --cds                 Add an AppCDS archive of the app's classes, from a training run on this host,
+                                as a layer at /opt/cds and to the entrypoint; reports startup time with
+                                and without it. Skipped for platforms whose JRE cannot run here
+          --cds-training-args <args>
+                                Arguments for the training run (default: none); it should exit by itself
+          --cds-training-timeout <s>
+                                Stop the training run after this many seconds (default: 120)
+          --preserve-base-layers
+                                Reference the base image's layer blobs, media types and diff_ids unchanged
+                                instead of flattening them into one re-archived layer
+          --cache-dir <dir>     Blob store and layer cache location (default: ~/.cache/oci-image-builder,
+                                honoring XDG_CACHE_HOME). Blobs are hard-linked into the output layout
+          --no-cache            Do not use the cache directory: rebuild all layers, write blobs to the output only
+          --gc                  Delete cached JREs and store blobs no layout links to, unused for --gc-max-age days;
+                                without --jre/--app/--module only collects garbage
+          --gc-max-age <days>   Minimum age of collected blobs (default: 14)
+          --verify              Rehash all store blobs on --jobs threads before building and delete corrupt
+                                ones, so they are rebuilt; without --jre/--app/--module only verifies
+          --cache-content-hash  Include file contents, not only metadata, in the cache key
+          --format <f>          oci (default): image layout directory at --out (default: oci-image)
+                                oci-archive: the layout as one tar file at --out (default: oci-image.tar)
+                                docker-archive: like oci-archive plus manifest.json, for docker load
+                                Archives are streamed from the blob store, without a layout directory
+          --tag <name:tag>      Repository tag recorded in a docker-archive (RepoTags)
+          --push <image>        Push the image to a registry, straight from the blob store. Blobs the
+                                repository has are skipped, missing ones are uploaded in parallel chunks
+          --mount-from <repo>   Repository on the push registry to mount existing blobs (e.g. a shared JRE)
+                                from instead of uploading them; repeatable. With --preserve-base-layers,
+                                the base image repository is tried too
+          --compression <c>     Layer compression: none (default) or gzip, compressed on all cores
+          --jobs <n>            Maximum number of layers built concurrently (default: number of CPUs)
+          --batch <file>        Build many images in this JVM, one per line of <file> holding the image's
+                                arguments (--jre/--platform, --app, --module, --out, ...; whitespace-separated,
+                                quotes keep spaces in an argument, # starts a comment; each --out only once).
+                                With -, lines are read from stdin and built as they arrive.
+                                Builds share the cache, base image downloads and JRE layers; cache, --jobs and
+                                --gc/--verify options apply to all and go on the command line
+          --parallel <n>        Images of a batch built concurrently (default: 4)
+          --metrics <file>      Write the build's cost as JSON: wall time per stage, bytes read, written,
+                                downloaded and uploaded, peak heap, layer cache and incremental hit rates
+          --reproducible        Sorted entries, mtime from SOURCE_DATE_EPOCH (or 0), root ownership and
+                                normalized modes, so unchanged inputs produce identical layer digests.
+                                Implied when SOURCE_DATE_EPOCH is set.
         """);
     }
 
@@ -176,110 +353,393 @@ public class OCIImageBuilder {
         System.exit(1);
     }
 
-    // Runs a shell command, throwing on error
-    static void runCmd(String... args) throws Exception {
-        ProcessBuilder pb = new ProcessBuilder(args);
-        pb.inheritIO();
-        Process p = pb.start();
-        if (p.waitFor() != 0) throw new RuntimeException("Command failed: " + String.join(" ", args));
+    // Download the layer blobs of a base image for platform into dir, concurrently and digest-verified
+    static List<Path> downloadDistrolessBaseLayer(String image, Platform platform, Path dir) throws Exception {
+        RegistryClient.Reference ref = RegistryClient.Reference.parse(image);
+        RegistryClient registry = new RegistryClient(ref.registry());
+        RegistryClient.Manifest manifest = registry.platformManifest(ref.repository(), ref.reference(), platform);
+        return downloadLayers(registry, ref, manifest, dir);
+    }
+
+    // Download the layer blobs of an image manifest into dir, concurrently and digest-verified
+    static List<Path> downloadLayers(RegistryClient registry, RegistryClient.Reference ref,
+                                     RegistryClient.Manifest manifest, Path dir) throws Exception {
+        List<String> digests = new ArrayList<>();
+        for (Object layer : Json.array(manifest.json(), "layers")) digests.add(Json.string(layer, "digest"));
+
+        ExecutorService downloads = Executors.newFixedThreadPool(Math.max(1, Math.min(digests.size(), 4)));
+        try {
+            return registry.fetchBlobs(ref.repository(), digests, dir, downloads);
+        } finally {
+            downloads.shutdownNow();
+        }
+    }
+
+    // Copy the layer blobs of a base image for platform into BLOBS byte for byte (skipping blobs already there),
+    // with the media types, sizes and diff_ids of its manifest and config, so the base is shared with every
+    // image built on it
+    static List<Layer> downloadBaseLayersVerbatim(String image, Platform platform, Path BLOBS) throws Exception {
+        System.out.println("Fetching " + platform + " base layers of " + image + " verbatim via registry API...");
+        RegistryClient.Reference ref = RegistryClient.Reference.parse(image);
+        RegistryClient registry = new RegistryClient(ref.registry());
+        Map<String, Object> manifest = registry.platformManifest(ref.repository(), ref.reference(), platform).json();
+        String configDigest = Json.string(Json.object(manifest, "config"), "digest");
+        Map<String, Object> config = Json.parseObject(
+                new String(registry.blob(ref.repository(), configDigest), StandardCharsets.UTF_8));
+        List<Object> diffIds = Json.array(Json.object(config, "rootfs"), "diff_ids");
+        List<Object> descriptors = Json.array(manifest, "layers");
+        if (diffIds.size() != descriptors.size()) {
+            throw new IOException("Base image " + image + " has " + descriptors.size() + " layers but "
+                    + diffIds.size() + " diff_ids");
+        }
+
+        List<Callable<Layer>> fetches = new ArrayList<>();
+        for (int i = 0; i < descriptors.size(); i++) {
+            Object descriptor = descriptors.get(i);
+            String diffId = (String) diffIds.get(i);
+            fetches.add(() -> {
+                String digest = Json.string(descriptor, "digest");
+                Path blob = BLOBS.resolve(digest.substring("sha256:".length()));
+                if (!Files.exists(blob)) {
+                    Path tmp = BLOBS.resolve(".blob-" + UUID.randomUUID() + ".tmp");
+                    try {
+                        registry.fetchBlob(ref.repository(), digest, tmp);
+                        Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(tmp);
+                    }
+                }
+                long size = Json.number(descriptor, "size");
+                if (size >= 0 && Files.size(blob) != size) throw new IOException("Size mismatch for base layer " + digest);
+                return new Layer(Json.string(descriptor, "mediaType"), blob.getFileName().toString(), diffId, Files.size(blob));
+            });
+        }
+        ExecutorService downloads = Executors.newFixedThreadPool(Math.max(1, Math.min(fetches.size(), 4)));
+        try {
+            return runAll(downloads, fetches);
+        } finally {
+            downloads.shutdownNow();
+        }
+    }
+
+    // Merge image layers into one tar as extracting them in order would: later entries win and
+    // whiteouts (.wh.<name>, .wh..wh..opq) delete lower content. Surviving entries are copied verbatim
+    static void flattenLayers(List<Path> layers, OutputStream out) throws Exception {
+        // Pass 1: the last layer defining each path, and where paths or directory contents were deleted
+        Map<String, Integer> lastLayer = new HashMap<>(), whiteouts = new HashMap<>(), opaque = new HashMap<>();
+        Map<String, Character> lastType = new HashMap<>();
+        for (int i = 0; i < layers.size(); i++) {
+            try (InputStream in = openLayer(layers.get(i))) {
+                TarReader tar = new TarReader(in);
+                for (TarReader.Entry e; (e = tar.next()) != null; ) {
+                    String path = normalizeEntryName(e.name());
+                    String name = path.substring(path.lastIndexOf('/') + 1), parent = parentOf(path);
+                    if (name.equals(".wh..wh..opq")) {
+                        opaque.put(parent, i);
+                    } else if (name.startsWith(".wh.")) {
+                        whiteouts.put(parent.isEmpty() ? name.substring(4) : parent + "/" + name.substring(4), i);
+                    } else {
+                        lastLayer.put(path, i);
+                        lastType.put(path, e.type());
+                    }
+                }
+            }
+        }
+
+        // Pass 2: copy every entry that is still visible in the merged tree
+        for (int i = 0; i < layers.size(); i++) {
+            try (InputStream in = openLayer(layers.get(i))) {
+                TarReader tar = new TarReader(in);
+                for (TarReader.Entry e; (e = tar.next()) != null; ) {
+                    String path = normalizeEntryName(e.name());
+                    if (path.substring(path.lastIndexOf('/') + 1).startsWith(".wh.")) continue;
+                    if (!survives(path, i, lastLayer, lastType, whiteouts, opaque)) continue;
+                    out.write(e.headers());
+                    tar.copyData(out);
+                }
+            }
+        }
+        out.write(new byte[TarWriter.BLOCK * 2]);
+    }
+
+    private static boolean survives(String path, int layer, Map<String, Integer> lastLayer,
+                                    Map<String, Character> lastType, Map<String, Integer> whiteouts,
+                                    Map<String, Integer> opaque) {
+        if (lastLayer.get(path) > layer) return false;
+        for (String p = path; ; p = parentOf(p)) {
+            if (whiteouts.getOrDefault(p, -1) > layer) return false;
+            if (!p.equals(path)) {
+                // an ancestor made opaque, or replaced by a non-directory, in a higher layer
+                if (opaque.getOrDefault(p, -1) > layer) return false;
+                if (lastLayer.getOrDefault(p, -1) > layer && lastType.get(p) != '5') return false;
+            }
+            if (p.isEmpty()) return true;
+        }
+    }
+
+    private static String normalizeEntryName(String name) {
+        String path = name;
+        while (path.startsWith("./") || path.startsWith("/")) path = path.substring(path.startsWith("/") ? 1 : 2);
+        while (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        return path.equals(".") ? "" : path;
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
     }
 
-    // Runs a command and returns its stdout as String
-    static String runCmdCapture(String... args) throws Exception {
-        ProcessBuilder pb = new ProcessBuilder(args);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (InputStream in = p.getInputStream()) {
-            in.transferTo(baos);
+    // Open a layer blob as an uncompressed tar stream, detecting gzip by its magic bytes
+    static InputStream openLayer(Path blob) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(blob), BUFFER_SIZE);
+        in.mark(4);
+        byte[] magic = in.readNBytes(4);
+        in.reset();
+        if (magic.length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
         }
-        if (p.waitFor() != 0) {
-            throw new RuntimeException("Command failed: " + String.join(" ", args));
+        if (magic.length == 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5
+                && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+            in.close();
+            throw new IOException("zstd-compressed layers are not supported: " + blob);
         }
-        return baos.toString(StandardCharsets.UTF_8);
+        return in;
     }
 
-    static void downloadDistrolessBaseLayer(String outTar) throws Exception {
+    // Fetch the base image for platform (or reuse a leftover baseLayerPath, if given) and flatten it into one
+    // layer in BLOBS. The flattened layer is cached by platform manifest digest, so it is rebuilt only when the
+    // base changes
+    static Layer buildBaseLayer(Path baseLayerPath, Path BLOBS, LayerCache cache, String baseImage, Platform platform,
+                                Layer.Compression compression) throws Exception {
+        if (baseLayerPath != null && Files.exists(baseLayerPath)) {
+            System.out.println("Base layer tar already present, skipping download.");
+            Layer layer = writeLayer(BLOBS, compression, out -> Files.copy(baseLayerPath, out));
+            Files.deleteIfExists(baseLayerPath);
+            return layer;
+        }
+        RegistryClient.Reference ref = RegistryClient.Reference.parse(baseImage);
+        RegistryClient registry = new RegistryClient(ref.registry());
+        RegistryClient.Manifest manifest = registry.platformManifest(ref.repository(), ref.reference(), platform);
+        String key = null;
+        if (cache != null) {
+            key = cache.key("flattened " + manifest.digest() + ",compression=" + compression);
+            Optional<Layer> cached = cache.fetch(key);
+            if (cached.isPresent()) {
+                System.out.println("Reusing cached " + platform + " base layer for " + baseImage + " (sha256:" + cached.get().digest() + ")");
+                return cached.get();
+            }
+        }
+        System.out.println("Downloading " + platform + " base layers from " + baseImage + " via registry API...");
         Path tmpDir = Files.createTempDirectory("distroless-base");
+        try {
+            List<Path> layers = downloadLayers(registry, ref, manifest, tmpDir);
+            Layer layer = writeLayer(BLOBS, compression, out -> flattenLayers(layers, out));
+            if (cache != null) cache.store(key, layer);
+            return layer;
+        } finally {
+            JREBuilder.deleteDir(tmpDir);
+        }
+    }
+
+    // Archive srcDir at targetDir into BLOBS, reusing the cached blob when the tree is unchanged
+    static Layer buildDirLayer(LayerCache cache, Path BLOBS, String srcDir, String targetDir, Long layerEpoch,
+                               Layer.Compression compression) throws Exception {
+        return buildDirLayer(cache, BLOBS, srcDir, targetDir, "", null, layerEpoch, compression);
+    }
+
+    // Archive the entries of srcDir selected by include (null for all) as layer part (e.g. "dependencies")
+    // at targetDir into BLOBS, reusing the cached blob when they are unchanged. After a change,
+    // uncompressed layers copy the content of the unchanged files from the previous build's blob
+    static Layer buildDirLayer(LayerCache cache, Path BLOBS, String srcDir, String targetDir, String part,
+                               Predicate<Path> include, Long layerEpoch, Layer.Compression compression) throws Exception {
+        String key = null;
+        String options = "epoch=" + layerEpoch + ",compression=" + compression;
+        if (cache != null) {
+            key = cache.key(Paths.get(srcDir), targetDir, options, include);
+            Optional<Layer> cached = cache.fetch(key);
+            if (cached.isPresent()) {
+                System.out.println("Reusing cached layer for " + srcDir + " (sha256:" + cached.get().digest() + ")");
+                return cached.get();
+            }
+        }
+        Layer layer;
+        if (cache != null && compression == Layer.Compression.NONE) {
+            IncrementalLayer incremental = new IncrementalLayer(
+                    cache.indexFile(Paths.get(srcDir), targetDir, options, part), BLOBS, cache.hashContents);
+            layer = incremental.write(layerEpoch, tar -> tar.addTree(Paths.get(srcDir), targetDir, include));
+            BuildMetrics.current().filesReused.addAndGet(incremental.reused);
+            BuildMetrics.current().filesRead.addAndGet(incremental.read);
+            if (incremental.reused > 0) {
+                System.out.println("Rebuilt layer for " + srcDir + " incrementally: read " + incremental.read
+                        + " files, reused " + incremental.reused);
+            }
+        } else {
+            layer = writeLayer(BLOBS, compression, out -> createTarWithDir(srcDir, targetDir, include, out, layerEpoch));
+        }
+        if (cache != null) cache.store(key, layer);
+        return layer;
+    }
 
-        // First get the image index
-        String imageIndex = runCmdCapture(
-                "curl", "-L",
-                "-H", "Accept: application/vnd.oci.image.index.v1+json",
-                "https://gcr.io/v2/distroless/base/manifests/latest");
+    // Train a CDS archive and archive it at /opt/cds into BLOBS, reusing the cached layer while the
+    // layers it was trained on (JRE and app) are unchanged
+    static Layer buildCdsLayer(LayerCache cache, Path BLOBS, CdsTrainer trainer, List<Layer> trainedOn,
+                               Long layerEpoch, Layer.Compression compression) throws Exception {
+        String key = null;
+        if (cache != null) {
+            StringBuilder description = new StringBuilder("cds");
+            for (Layer l : trainedOn) description.append(' ').append(l.digest());
+            key = cache.key(description + " " + trainer.description() + ",epoch=" + layerEpoch
+                    + ",compression=" + compression);
+            Optional<Layer> cached = cache.fetch(key);
+            if (cached.isPresent()) {
+                System.out.println("Reusing cached CDS layer (sha256:" + cached.get().digest() + ")");
+                return cached.get();
+            }
+        }
+        Path dir = Files.createTempDirectory("oci-cds");
+        try {
+            // an app stopped at the timeout would only be stopped again, once per timing run
+            long[] startup = trainer.train(dir) ? trainer.measureStartup(dir) : null;
+            if (startup != null) {
+                System.out.printf("Startup without CDS: %d ms, with CDS: %d ms (fastest of %d runs)%n",
+                        startup[0], startup[1], CdsTrainer.TIMING_RUNS);
+            } else {
+                System.out.println("Startup not timed: the training run does not exit by itself");
+            }
+            Layer layer = writeLayer(BLOBS, compression,
+                    out -> createTarWithDir(dir.toString(), CdsTrainer.TARGET_DIR, out, layerEpoch));
+            if (cache != null) cache.store(key, layer);
+            return layer;
+        } finally {
+            JREBuilder.deleteDir(dir);
+        }
+    }
 
-        // Extract the manifest digest for linux/amd64 from the image index
-        java.util.regex.Pattern manifestPattern = java.util.regex.Pattern.compile(
-                "\"digest\"\\s*:\\s*\"(sha256:[a-f0-9]+)\".*?\"platform\"\\s*:\\s*\\{.*?\"architecture\"\\s*:\\s*\"amd64\".*?\"os\"\\s*:\\s*\"linux\"",
-                java.util.regex.Pattern.DOTALL);
-        java.util.regex.Matcher manifestMatcher = manifestPattern.matcher(imageIndex);
-        if (!manifestMatcher.find()) {
-            throw new RuntimeException("Could not find linux/amd64 manifest in image index");
+    // Runs tasks on pool and returns their results in order. Fails fast: the first failure
+    // cancels (interrupts) the remaining tasks and is rethrown once they have stopped, so that
+    // the caller's cleanup does not race with tasks still writing temporary files
+    static <T> List<T> runAll(ExecutorService pool, List<Callable<T>> tasks) throws Exception {
+        CompletionService<T> completion = new ExecutorCompletionService<>(pool);
+        Map<Future<T>, Integer> index = new HashMap<>();
+        RunningTasks running = new RunningTasks();
+        for (Callable<T> task : tasks) {
+            index.put(completion.submit(() -> {
+                running.enter();
+                try {
+                    return task.call();
+                } finally {
+                    running.exit();
+                }
+            }), index.size());
         }
-        String manifestDigest = manifestMatcher.group(1);
+        List<T> results = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                Future<T> done = completion.take();
+                results.set(index.get(done), done.get());
+            }
+        } catch (ExecutionException e) {
+            running.cancel(index.keySet());
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        } catch (InterruptedException e) {
+            running.cancel(index.keySet());
+            throw e;
+        }
+        return results;
+    }
 
-        // Get the actual manifest using the digest, accepting the OCI manifest format
-        String manifest = runCmdCapture(
-                "curl", "-L",
-                "-H", "Accept: application/vnd.oci.image.manifest.v1+json, application/vnd.docker.distribution.manifest.v2+json",
-                "https://gcr.io/v2/distroless/base/manifests/" + manifestDigest);
+    // Counts the tasks of a runAll inside call(), so that cancelling can wait for them to stop
+    private static final class RunningTasks {
+        private int count;
+        private boolean cancelled;
 
-        List<String> digests = new ArrayList<>();
-        int layersIdx = manifest.indexOf("\"layers\"");
-        if (layersIdx != -1) {
-            String layersPart = manifest.substring(layersIdx);
-            java.util.regex.Matcher m = java.util.regex.Pattern
-                    .compile("\"digest\"\\s*:\\s*\"(sha256:[a-f0-9]+)\"")
-                    .matcher(layersPart);
-            while (m.find()) digests.add(m.group(1));
+        synchronized void enter() {
+            // a task the pool only starts after cancelling must not begin its work
+            if (cancelled) throw new CancellationException();
+            count++;
         }
 
-        for (String digest : digests) {
-            runCmd("bash", "-c",
-                    "curl --silent -L https://gcr.io/v2/distroless/base/blobs/" + digest +
-                            " | tar -xz -C " + tmpDir.toAbsolutePath());
+        synchronized void exit() {
+            count--;
+            notifyAll();
         }
 
-        runCmd("tar", "cf", outTar, "-C", tmpDir.toString(), ".");
+        // Interrupts the tasks and waits until none is left in call(); keeps the caller's interrupt
+        synchronized void cancel(Collection<? extends Future<?>> futures) {
+            cancelled = true;
+            futures.forEach(f -> f.cancel(true));
+            boolean interrupted = Thread.interrupted();
+            while (count > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
 
-        // the app exits after this, no need to close resources
-        //noinspection resource
-        Files.walk(tmpDir)
-                .sorted(Comparator.reverseOrder())
-                .forEach(p -> {
-                    try { Files.delete(p); } catch (IOException ignored) {}
-                });
+    // Streams an uncompressed layer tar into BLOBS, compressing it on the way if requested.
+    // diff_id (tar) and digest (blob) are computed in the same single pass
+    static Layer writeLayer(Path BLOBS, Layer.Compression compression, BlobContent tar) throws Exception {
+        if (compression == Layer.Compression.NONE) {
+            String digest = writeBlob(BLOBS, tar);
+            return new Layer(compression.mediaType, digest, "sha256:" + digest, Files.size(BLOBS.resolve(digest)));
+        }
+        MessageDigest diffId = Digests.sha256();
+        String digest = writeBlob(BLOBS, out -> {
+            ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, Deflater.DEFAULT_COMPRESSION);
+            OutputStream uncompressed = new BufferedOutputStream(new DigestOutputStream(gzip, diffId), BUFFER_SIZE);
+            tar.writeTo(uncompressed);
+            uncompressed.flush();
+            gzip.finish();
+        });
+        return new Layer(compression.mediaType, digest, "sha256:" + Digests.hex(diffId.digest()),
+                Files.size(BLOBS.resolve(digest)));
     }
 
     // Write a blob from String, returns digest (hex, no 'sha256:')
     static String writeBlob(String json, Path BLOBS) throws Exception {
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
-        String digest = sha256Hex(data);
-        Files.write(BLOBS.resolve(digest), data);
-        return digest;
-    }
-
-    // Compute SHA-256 as a hex string (no "sha256:" prefix)
-    static String sha256Hex(byte[] data) throws Exception {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] hash = md.digest(data);
-        StringBuilder sb = new StringBuilder();
-        for (byte b : hash) sb.append(String.format("%02x", b));
-        return sb.toString();
-    }
-
-    // Create a tar archive from srcDir, placing its content at targetDir in tar
-    static void createTarWithDir(String srcDir, String targetDir, String outTar) throws Exception {
-        List<String> cmd = List.of("tar", "cf", outTar, "-C", srcDir, ".");
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        // Transform the root dir in tar: /foo -> /opt/jre or /opt/app
-        Map<String,String> env = pb.environment();
-        env.put("TAR_OPTIONS", "--transform=s,^," + targetDir.replaceFirst("^/", "") + "/,");
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-            br.lines().forEach(System.out::println);
-        }
-        if (p.waitFor() != 0) throw new RuntimeException("tar failed for " + srcDir);
-    }
-}
\ No newline at end of file
+        return writeBlob(BLOBS, out -> out.write(data));
+    }
+
+    // Streams a blob into a temp file in BLOBS while hashing it, then renames it to its digest.
+    // Heap use is one buffer regardless of blob size; returns digest (hex, no 'sha256:')
+    static String writeBlob(Path BLOBS, BlobContent content) throws Exception {
+        MessageDigest md = Digests.sha256();
+        // not createTempFile: blobs must keep the default (world-readable) permissions
+        Path tmp = BLOBS.resolve(".blob-" + UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new DigestOutputStream(
+                    Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW), md), BUFFER_SIZE)) {
+                content.writeTo(out);
+            }
+            BuildMetrics.current().bytesWritten.addAndGet(Files.size(tmp));
+            String digest = Digests.hex(md.digest());
+            // keep an existing blob: replacing it would cut its hard links to the layouts sharing it
+            if (!Files.exists(BLOBS.resolve(digest))) {
+                Files.move(tmp, BLOBS.resolve(digest), StandardCopyOption.ATOMIC_MOVE);
+            }
+            return digest;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Stream a tar archive of srcDir to out, placing its content at targetDir in tar.
+    // A non-null layerEpoch makes the archive reproducible (fixed mtime, normalized ownership and modes)
+    static void createTarWithDir(String srcDir, String targetDir, OutputStream out, Long layerEpoch) throws Exception {
+        createTarWithDir(srcDir, targetDir, null, out, layerEpoch);
+    }
+
+    // Like createTarWithDir, with only the entries selected by include (relative to srcDir, null for all)
+    static void createTarWithDir(String srcDir, String targetDir, Predicate<Path> include, OutputStream out,
+                                 Long layerEpoch) throws Exception {
+        TarWriter tar = new TarWriter(out, layerEpoch);
+        tar.addTree(Paths.get(srcDir), targetDir, include);
+        tar.finish();
+    }
+}
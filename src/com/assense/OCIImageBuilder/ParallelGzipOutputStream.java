@@ -0,0 +1,141 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip stream that compresses independent blocks on all cores, in the manner of pigz.
+ * <p>
+ * Input is cut into fixed-size blocks, each deflated on its own with the previous block's tail as
+ * preset dictionary and ended with a sync flush, so the compressed blocks concatenate into a
+ * single standard deflate stream. The CRC is computed on the calling thread as data arrives. The
+ * output depends only on the input and settings, never on scheduling, so layers stay reproducible.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    static final int BLOCK_SIZE = 1 << 20;
+    static final int DICTIONARY_SIZE = 1 << 15;
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "gzip-block");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final OutputStream out;
+    private final int level;
+    private final int maxPending = Runtime.getRuntime().availableProcessors() * 2;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private byte[] dictionary;
+    private long totalIn;
+    private boolean finished;
+
+    public ParallelGzipOutputStream(OutputStream out, int level) throws IOException {
+        this.out = out;
+        this.level = level;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("Stream already finished");
+        crc.update(b, off, len);
+        totalIn += len;
+        while (len > 0) {
+            int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == block.length) submitBlock(false);
+        }
+    }
+
+    /** Compresses the remaining input and writes the gzip trailer; the underlying stream stays open. */
+    public void finish() throws IOException {
+        if (finished) return;
+        submitBlock(true);
+        while (!pending.isEmpty()) drainOne();
+        long crcValue = crc.getValue();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (crcValue >>> (8 * i));
+            trailer[4 + i] = (byte) (totalIn >>> (8 * i));
+        }
+        out.write(trailer);
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        byte[] input = block, dict = dictionary;
+        int length = blockLength;
+        if (length >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length);
+        } else if (length > 0) {
+            dictionary = Arrays.copyOfRange(input, 0, length);
+        }
+        pending.add(POOL.submit(() -> deflate(input, length, dict, last)));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        while (pending.size() > maxPending) drainOne();
+    }
+
+    private void drainOne() throws IOException {
+        try {
+            out.write(pending.remove().get());
+        } catch (ExecutionException e) {
+            throw new IOException("Block compression failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+    }
+
+    private byte[] deflate(byte[] input, int length, byte[] dict, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) deflater.setDictionary(dict);
+            deflater.setInput(input, 0, length);
+            if (last) deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buf = new byte[BLOCK_SIZE / 4];
+            while (true) {
+                int n = deflater.deflate(buf, 0, buf.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                compressed.write(buf, 0, n);
+                if (last ? deflater.finished() : n < buf.length) break;
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelGzipOutputStreamTest {
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(7);
+
+        // --- 1. Round trip across block boundaries: empty, tiny, exact multiple, compressible, random ---
+        byte[] compressible = new byte[ParallelGzipOutputStream.BLOCK_SIZE * 3 + 12345];
+        for (int i = 0; i < compressible.length; i++) compressible[i] = (byte) ("layer-" + (i % 977)).charAt(i % 6);
+        byte[] incompressible = new byte[ParallelGzipOutputStream.BLOCK_SIZE * 2 + 1];
+        random.nextBytes(incompressible);
+        for (byte[] input : new byte[][]{new byte[0], "x".getBytes(), new byte[ParallelGzipOutputStream.BLOCK_SIZE * 2],
+                compressible, incompressible}) {
+            byte[] gz = compress(input);
+            byte[] back;
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+                back = in.readAllBytes();
+            }
+            if (!Arrays.equals(input, back)) throw new AssertionError("round trip failed for " + input.length + " bytes");
+        }
+
+        // --- 2. Compression works and is deterministic ---
+        byte[] first = compress(compressible);
+        if (first.length > compressible.length / 10) throw new AssertionError("poor compression: " + first.length);
+        if (!Arrays.equals(first, compress(compressible))) throw new AssertionError("output is not deterministic");
+
+        System.out.println("All ParallelGzipOutputStream assertions passed!");
+    }
+
+    static byte[] compress(byte[] input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gz = new ParallelGzipOutputStream(out, Deflater.DEFAULT_COMPRESSION)) {
+            // odd write sizes to exercise partial blocks
+            for (int off = 0; off < input.length; off += 100_003) gz.write(input, off, Math.min(100_003, input.length - off));
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,42 @@
+package com.assense.OCIImageBuilder;
+
+/**
+ * Target platform of an image manifest, as listed in an OCI image index.
+ *
+ * @param os           operating system, e.g. {@code linux}
+ * @param architecture CPU architecture in GOARCH terms, e.g. {@code amd64} or {@code arm64}
+ * @param variant      CPU variant, e.g. {@code v8}, or null
+ */
+public record Platform(String os, String architecture, String variant) {
+    public static final Platform LINUX_AMD64 = new Platform("linux", "amd64", null);
+
+    /** Parses {@code os/architecture[/variant]}, e.g. {@code linux/arm64/v8}. */
+    public static Platform parse(String value) {
+        String[] parts = value.split("/", -1);
+        if (parts.length < 2 || parts.length > 3 || value.contains("//") || value.endsWith("/")) {
+            throw new IllegalArgumentException("Invalid platform: " + value + " (use os/architecture[/variant])");
+        }
+        return new Platform(parts[0], parts[1], parts.length == 3 ? parts[2] : null);
+    }
+
+    /**
+     * Whether a {@code platform} object of an image index describes this platform. A variant missing on
+     * either side matches any, as indexes often omit the default variant (e.g. {@code v8} of arm64).
+     */
+    public boolean matches(Object platform) {
+        String other = Json.string(platform, "variant");
+        return os.equals(Json.string(platform, "os")) && architecture.equals(Json.string(platform, "architecture"))
+                && (variant == null || other == null || variant.equals(other));
+    }
+
+    /** The {@code platform} object for an image index entry. */
+    public String json() {
+        return "{ \"architecture\": " + Json.quote(architecture) + ", \"os\": " + Json.quote(os)
+                + (variant != null ? ", \"variant\": " + Json.quote(variant) : "") + " }";
+    }
+
+    @Override
+    public String toString() {
+        return os + "/" + architecture + (variant != null ? "/" + variant : "");
+    }
+}
@@ -0,0 +1,509 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process client for the OCI distribution API, replacing curl. Handles anonymous and
+ * credential-based token auth, redirects to blob storage, digest verification while streaming
+ * and retries that resume interrupted blob downloads with range requests. For pushing, it checks
+ * for existing blobs, mounts blobs across repositories and uploads in chunks.
+ * <p>
+ * Credentials are taken from {@code OCI_REGISTRY_USERNAME} / {@code OCI_REGISTRY_PASSWORD} when
+ * set. Registries on localhost, and those listed in {@code OCI_INSECURE_REGISTRIES}, use plain HTTP.
+ */
+public class RegistryClient {
+    public static final String OCI_INDEX = "application/vnd.oci.image.index.v1+json";
+    public static final String OCI_MANIFEST = "application/vnd.oci.image.manifest.v1+json";
+    public static final String DOCKER_MANIFEST_LIST = "application/vnd.docker.distribution.manifest.list.v2+json";
+    public static final String DOCKER_MANIFEST = "application/vnd.docker.distribution.manifest.v2+json";
+    static final String ACCEPT_ANY_MANIFEST = String.join(", ", OCI_INDEX, OCI_MANIFEST, DOCKER_MANIFEST_LIST, DOCKER_MANIFEST);
+    static final int MAX_ATTEMPTS = 4;
+    static final int MAX_REDIRECTS = 5;
+
+    private static final Pattern CHALLENGE_PARAM = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    /** Image reference split into registry host, repository and tag or digest. */
+    public record Reference(String registry, String repository, String reference) {
+        public static Reference parse(String image) {
+            String registry = "docker.io", rest = image;
+            int slash = image.indexOf('/');
+            if (slash > 0) {
+                String first = image.substring(0, slash);
+                if (first.contains(".") || first.contains(":") || first.equals("localhost")) {
+                    registry = first;
+                    rest = image.substring(slash + 1);
+                }
+            }
+            String reference = "latest";
+            int at = rest.indexOf('@');
+            if (at >= 0) {
+                reference = rest.substring(at + 1);
+                rest = rest.substring(0, at);
+            } else {
+                int colon = rest.lastIndexOf(':');
+                if (colon > rest.lastIndexOf('/')) {
+                    reference = rest.substring(colon + 1);
+                    rest = rest.substring(0, colon);
+                }
+            }
+            if (registry.equals("docker.io") && !rest.contains("/")) rest = "library/" + rest;
+            return new Reference(registry, rest, reference);
+        }
+
+        @Override
+        public String toString() {
+            return registry + "/" + repository + (reference.startsWith("sha256:") ? "@" : ":") + reference;
+        }
+    }
+
+    /** A manifest or index as served, with its digest. */
+    public record Manifest(String mediaType, String digest, byte[] body) {
+        public Map<String, Object> json() {
+            return Json.parseObject(new String(body, StandardCharsets.UTF_8));
+        }
+
+        public boolean isIndex() {
+            return OCI_INDEX.equals(mediaType) || DOCKER_MANIFEST_LIST.equals(mediaType);
+        }
+    }
+
+    final URI base;
+    private final HttpClient http;
+    private final String basicCredentials;
+    // Authorization header per "repository:actions" scope
+    private final Map<String, String> authorizations = new ConcurrentHashMap<>();
+
+    public RegistryClient(String registry) {
+        this(URI.create((isInsecure(registry) ? "http://" : "https://")
+                + (registry.equals("docker.io") ? "registry-1.docker.io" : registry)));
+    }
+
+    RegistryClient(URI base) {
+        this.base = base;
+        this.http = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+        String user = System.getenv("OCI_REGISTRY_USERNAME"), password = System.getenv("OCI_REGISTRY_PASSWORD");
+        this.basicCredentials = user == null || password == null ? null : "Basic " + Base64.getEncoder()
+                .encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static boolean isInsecure(String registry) {
+        String host = registry.replaceFirst(":\\d+$", "");
+        if (host.equals("localhost") || host.equals("127.0.0.1")) return true;
+        String insecure = Optional.ofNullable(System.getenv("OCI_INSECURE_REGISTRIES")).orElse("");
+        return Arrays.asList(insecure.split("\\s*,\\s*")).contains(registry);
+    }
+
+    /** Fetches a manifest or index by tag or digest, verifying digest references. */
+    public Manifest manifest(String repository, String reference) throws Exception {
+        HttpResponse<byte[]> response = send("GET", uri(repository, "manifests/" + reference),
+                Map.of("Accept", ACCEPT_ANY_MANIFEST), HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofByteArray(), scope(repository, "pull"));
+        requireSuccess(response, "GET manifest " + repository + ":" + reference);
+        String digest = "sha256:" + Digests.sha256(response.body());
+        if (reference.startsWith("sha256:") && !reference.equals(digest)) {
+            throw new IOException("Digest mismatch for manifest " + reference + ": got " + digest);
+        }
+        String mediaType = response.headers().firstValue("Content-Type").map(t -> t.replaceFirst(";.*", "").trim())
+                .orElse(null);
+        if (mediaType == null || !ACCEPT_ANY_MANIFEST.contains(mediaType)) {
+            mediaType = Json.string(Json.parseObject(new String(response.body(), StandardCharsets.UTF_8)), "mediaType");
+        }
+        return new Manifest(mediaType, digest, response.body());
+    }
+
+    /** Resolves {@code reference} to the image manifest for the given platform, descending into an index if needed. */
+    public Manifest platformManifest(String repository, String reference, Platform platform) throws Exception {
+        Manifest manifest = manifest(repository, reference);
+        if (!manifest.isIndex()) return manifest;
+        for (Object m : Json.array(manifest.json(), "manifests")) {
+            if (platform.matches(Json.object(m, "platform"))) return manifest(repository, Json.string(m, "digest"));
+        }
+        throw new IOException("No " + platform + " manifest in " + repository + ":" + reference);
+    }
+
+    /** Fetches a small blob (e.g. a config) into memory, verifying its digest. */
+    public byte[] blob(String repository, String digest) throws Exception {
+        Path tmp = Files.createTempFile("blob", ".tmp");
+        try {
+            fetchBlob(repository, digest, tmp);
+            return Files.readAllBytes(tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Downloads a blob to {@code target}, hashing while streaming. Transient failures are retried;
+     * an interrupted transfer resumes with a range request where the registry supports it.
+     */
+    public void fetchBlob(String repository, String digest, Path target) throws Exception {
+        MessageDigest md = Digests.sha256();
+        long have = 0;
+        Exception failure = null;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                if (attempt > 1) Thread.sleep(250L << attempt);
+                Map<String, String> headers = have > 0 ? Map.of("Range", "bytes=" + have + "-") : Map.of();
+                HttpResponse<InputStream> response;
+                try {
+                    response = send("GET", uri(repository, "blobs/" + digest), headers,
+                            HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofInputStream(),
+                            scope(repository, "pull"));
+                } catch (IOException e) {
+                    failure = e;
+                    continue;
+                }
+                int status = response.statusCode();
+                if (status == 429 || status >= 500) {
+                    response.body().close();
+                    failure = new IOException("GET blob " + digest + " failed with HTTP " + status);
+                    continue;
+                }
+                if (status != 200 && status != 206) {
+                    try (InputStream in = response.body()) {
+                        throw new IOException("GET blob " + repository + "@" + digest + " failed with HTTP " + status
+                                + ": " + new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                    }
+                }
+                if (status == 206 && rangeStart(response) != have) {
+                    // appending another range than the one asked for would corrupt the blob: start over without one
+                    String range = response.headers().firstValue("Content-Range").orElse("none");
+                    response.body().close();
+                    md.reset();
+                    out.truncate(0);
+                    out.position(0);
+                    have = 0;
+                    failure = new IOException("GET blob " + digest + " returned range " + range);
+                    continue;
+                }
+                if (status == 200 && have > 0) {
+                    // the registry ignored the range request: start over
+                    md.reset();
+                    out.truncate(0);
+                    out.position(0);
+                    have = 0;
+                }
+                try (InputStream in = response.body()) {
+                    byte[] buf = new byte[OCIImageBuilder.BUFFER_SIZE];
+                    for (int n; (n = in.read(buf)) > 0; ) {
+                        md.update(buf, 0, n);
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                        while (bb.hasRemaining()) out.write(bb);
+                        have += n;
+                        BuildMetrics.current().bytesDownloaded.addAndGet(n);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    continue;
+                }
+                String actual = "sha256:" + Digests.hex(md.digest());
+                if (!actual.equals(digest)) {
+                    throw new IOException("Digest mismatch for blob " + digest + ": got " + actual);
+                }
+                return;
+            }
+        }
+        throw new IOException("Giving up on blob " + digest + " after " + MAX_ATTEMPTS + " attempts", failure);
+    }
+
+    // First byte of a 206 response's Content-Range ("bytes <first>-<last>/<size>"), or -1 if it has none
+    static long rangeStart(HttpResponse<?> response) {
+        String range = response.headers().firstValue("Content-Range").orElse("").trim();
+        int dash = range.indexOf('-');
+        if (!range.startsWith("bytes ") || dash < 0) return -1;
+        try {
+            return Long.parseLong(range.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Downloads several blobs concurrently into {@code dir}, returning their files in order. */
+    public List<Path> fetchBlobs(String repository, List<String> digests, Path dir, ExecutorService pool)
+            throws Exception {
+        List<java.util.concurrent.Callable<Path>> tasks = new ArrayList<>();
+        for (String digest : digests) {
+            tasks.add(() -> {
+                Path target = dir.resolve(digest.replace(':', '-'));
+                fetchBlob(repository, digest, target);
+                return target;
+            });
+        }
+        return OCIImageBuilder.runAll(pool, tasks);
+    }
+
+    /** Whether the repository already has the blob. */
+    public boolean hasBlob(String repository, String digest) throws Exception {
+        return withRetries("HEAD blob " + digest, () -> {
+            HttpResponse<byte[]> response = send("HEAD", uri(repository, "blobs/" + digest), Map.of(),
+                    HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofByteArray(), scope(repository, "pull,push"));
+            if (response.statusCode() == 404) return false;
+            requireSuccess(response, "HEAD blob " + repository + "@" + digest);
+            return true;
+        });
+    }
+
+    /**
+     * Asks the registry to mount a blob of another repository into {@code repository} without
+     * transferring it. Returns false if the registry declined (e.g. the source lacks the blob).
+     */
+    public boolean mountBlob(String repository, String digest, String fromRepository) throws Exception {
+        return withRetries("mount of blob " + digest, () -> requestMount(repository, digest, fromRepository));
+    }
+
+    private boolean requestMount(String repository, String digest, String fromRepository) throws Exception {
+        String query = "?mount=" + URLEncoder.encode(digest, StandardCharsets.UTF_8)
+                + "&from=" + URLEncoder.encode(fromRepository, StandardCharsets.UTF_8);
+        HttpResponse<byte[]> response = send("POST", uri(repository, "blobs/uploads/" + query), Map.of(),
+                HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofByteArray(),
+                scope(repository, "pull,push") + " " + scope(fromRepository, "pull"));
+        if (response.statusCode() == 201) return true;
+        requireSuccess(response, "Mount blob " + digest + " from " + fromRepository);
+        // 202: the registry opened a regular upload session instead, which we do not need
+        try {
+            send("DELETE", location(response), Map.of(), HttpRequest.BodyPublishers.noBody(),
+                    HttpResponse.BodyHandlers.discarding(), scope(repository, "pull,push"));
+        } catch (IOException ignored) {
+            // abandoned sessions expire on their own
+        }
+        return false;
+    }
+
+    /**
+     * Uploads a blob from {@code file}, streamed in PATCH requests of at most {@code chunkSize}
+     * bytes and completed with a PUT carrying the digest. A failed upload is retried from the start.
+     */
+    public void pushBlob(String repository, String digest, Path file, long chunkSize) throws Exception {
+        Exception failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            if (attempt > 1) Thread.sleep(250L << attempt);
+            try {
+                uploadBlob(repository, digest, file, chunkSize);
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw new IOException("Giving up on uploading blob " + digest + " after " + MAX_ATTEMPTS + " attempts", failure);
+    }
+
+    private void uploadBlob(String repository, String digest, Path file, long chunkSize) throws Exception {
+        String scope = scope(repository, "pull,push");
+        HttpResponse<byte[]> response = send("POST", uri(repository, "blobs/uploads/"), Map.of(),
+                HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofByteArray(), scope);
+        requireSuccess(response, "Start upload of " + digest);
+        URI location = location(response);
+        long size = Files.size(file);
+        for (long offset = 0; offset < size; offset += chunkSize) {
+            long length = Math.min(chunkSize, size - offset);
+            response = send("PATCH", location, Map.of("Content-Type", "application/octet-stream",
+                            "Content-Range", offset + "-" + (offset + length - 1)),
+                    fileRange(file, offset, length), HttpResponse.BodyHandlers.ofByteArray(), scope);
+            requireSuccess(response, "Upload chunk of " + digest + " at " + offset);
+            location = location(response);
+        }
+        URI complete = URI.create(location + (location.getRawQuery() == null ? "?" : "&")
+                + "digest=" + URLEncoder.encode(digest, StandardCharsets.UTF_8));
+        response = send("PUT", complete, Map.of(), HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofByteArray(), scope);
+        requireSuccess(response, "Complete upload of " + digest);
+    }
+
+    /** Pushes a manifest or index under a tag or its digest. */
+    public void putManifest(String repository, String reference, String mediaType, byte[] body) throws Exception {
+        withRetries("PUT manifest " + reference, () -> {
+            HttpResponse<byte[]> response = send("PUT", uri(repository, "manifests/" + reference),
+                    Map.of("Content-Type", mediaType), HttpRequest.BodyPublishers.ofByteArray(body),
+                    HttpResponse.BodyHandlers.ofByteArray(), scope(repository, "pull,push"));
+            requireSuccess(response, "PUT manifest " + repository + ":" + reference);
+            return null;
+        });
+    }
+
+    private interface Request<T> {
+        T send() throws Exception;
+    }
+
+    // Sends an idempotent request up to MAX_ATTEMPTS times with fetchBlob's backoff. Connection
+    // failures (e.g. on a reused connection the registry closed) and 429/5xx answers are retried,
+    // other answers are final
+    private static <T> T withRetries(String what, Request<T> request) throws Exception {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            if (attempt > 1) Thread.sleep(250L << attempt);
+            try {
+                return request.send();
+            } catch (StatusException e) {
+                if (!e.isTransient()) throw e;
+                failure = e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw new IOException("Giving up on " + what + " after " + MAX_ATTEMPTS + " attempts", failure);
+    }
+
+    // Streams length bytes of file from offset; re-opened on every subscription, so requests can be resent
+    private static HttpRequest.BodyPublisher fileRange(Path file, long offset, long length) {
+        return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                InputStream in = Channels.newInputStream(FileChannel.open(file).position(offset));
+                return new FilterInputStream(in) {
+                    private long left = length;
+
+                    @Override
+                    public int read() throws IOException {
+                        if (left <= 0) return -1;
+                        int b = super.read();
+                        if (b >= 0) left--;
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (left <= 0) return -1;
+                        int n = super.read(b, off, (int) Math.min(len, left));
+                        if (n > 0) left -= n;
+                        return n;
+                    }
+                };
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }), length);
+    }
+
+    private URI location(HttpResponse<?> response) throws IOException {
+        String location = response.headers().firstValue("Location")
+                .orElseThrow(() -> new IOException("No Location in upload response from " + base));
+        return response.uri().resolve(location);
+    }
+
+    URI uri(String repository, String path) {
+        return base.resolve("/v2/" + repository + "/" + path);
+    }
+
+    static String scope(String repository, String actions) {
+        return "repository:" + repository + ":" + actions;
+    }
+
+    /**
+     * Sends a request, authenticating on a 401 challenge and following redirects. Credentials are
+     * only sent to the registry itself, never to redirect targets such as signed storage URLs.
+     * {@code scope} holds the space-separated token scopes the request needs.
+     */
+    <T> HttpResponse<T> send(String method, URI uri, Map<String, String> headers, HttpRequest.BodyPublisher body,
+                             HttpResponse.BodyHandler<T> handler, String scope) throws Exception {
+        boolean authenticated = false;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; ) {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri).method(method, body)
+                    .timeout(Duration.ofMinutes(10));
+            headers.forEach(request::header);
+            boolean toRegistry = uri.getAuthority().equals(base.getAuthority());
+            String authorization = authorizations.get(scope);
+            if (toRegistry && authorization != null) request.header("Authorization", authorization);
+
+            HttpResponse<T> response = http.send(request.build(), handler);
+            int status = response.statusCode();
+            if (status == 401 && toRegistry && !authenticated) {
+                discard(response);
+                authorizations.put(scope, authenticate(response, scope));
+                authenticated = true;
+                continue;
+            }
+            Optional<String> location = response.headers().firstValue("Location");
+            if ((status == 301 || status == 302 || status == 303 || status == 307 || status == 308)
+                    && location.isPresent() && (method.equals("GET") || method.equals("HEAD"))) {
+                discard(response);
+                uri = uri.resolve(location.get());
+                redirects++;
+                continue;
+            }
+            return response;
+        }
+        throw new IOException("Too many redirects for " + uri);
+    }
+
+    // Answers a WWW-Authenticate challenge with a bearer token (or basic credentials)
+    private String authenticate(HttpResponse<?> challengeResponse, String scope) throws Exception {
+        String challenge = challengeResponse.headers().firstValue("WWW-Authenticate")
+                .orElseThrow(() -> new IOException("401 without WWW-Authenticate from " + base));
+        if (challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+            if (basicCredentials == null) throw new IOException("Registry " + base + " requires credentials");
+            return basicCredentials;
+        }
+        Map<String, String> params = new HashMap<>();
+        Matcher m = CHALLENGE_PARAM.matcher(challenge);
+        while (m.find()) params.put(m.group(1), m.group(2));
+        String realm = params.get("realm");
+        if (realm == null) throw new IOException("Unsupported auth challenge: " + challenge);
+        StringBuilder tokenUri = new StringBuilder(realm);
+        char separator = realm.contains("?") ? '&' : '?';
+        for (String s : scope.split(" ")) {
+            tokenUri.append(separator).append("scope=").append(URLEncoder.encode(s, StandardCharsets.UTF_8));
+            separator = '&';
+        }
+        if (params.containsKey("service")) {
+            tokenUri.append("&service=").append(URLEncoder.encode(params.get("service"), StandardCharsets.UTF_8));
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(tokenUri.toString())).GET();
+        if (basicCredentials != null) request.header("Authorization", basicCredentials);
+        HttpResponse<String> response = http.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Token request to " + realm + " failed with HTTP " + response.statusCode());
+        }
+        Map<String, Object> json = Json.parseObject(response.body());
+        String token = Optional.ofNullable(Json.string(json, "token")).orElse(Json.string(json, "access_token"));
+        if (token == null) throw new IOException("No token in response from " + realm);
+        return "Bearer " + token;
+    }
+
+    static <T> void requireSuccess(HttpResponse<T> response, String what) throws IOException {
+        int status = response.statusCode();
+        if (status >= 200 && status < 300) return;
+        Object body = response.body();
+        String detail = body instanceof byte[] b ? new String(b, StandardCharsets.UTF_8) : String.valueOf(body);
+        throw new StatusException(what + " failed with HTTP " + status + ": " + detail, status);
+    }
+
+    /** A registry answer with an unexpected HTTP status. */
+    static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        StatusException(String message, int status) {
+            super(message);
+            this.status = status;
+        }
+
+        // rate limiting and server errors may pass; anything else will be answered the same again
+        boolean isTransient() {
+            return status == 429 || status >= 500;
+        }
+    }
+
+    private static void discard(HttpResponse<?> response) throws IOException {
+        if (response.body() instanceof InputStream in) in.close();
+    }
+}
@@ -0,0 +1,120 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+public class RegistryClientTest {
+    public static void main(String[] args) throws Exception {
+        String workDir = "test-registry-work";
+        cleanDir(workDir);
+        Path work = Files.createDirectories(Paths.get(workDir));
+
+        try (TestRegistry registry = new TestRegistry()) {
+            // --- 1. Two-layer base image: the upper layer deletes etc/a and hides dir/x ---
+            Path lower = Files.createDirectories(work.resolve("lower"));
+            Files.createDirectories(lower.resolve("etc"));
+            Files.createDirectories(lower.resolve("dir"));
+            Files.writeString(lower.resolve("etc/a"), "a");
+            Files.writeString(lower.resolve("etc/b"), "b");
+            Files.writeString(lower.resolve("dir/x"), "x");
+            Path upper = Files.createDirectories(work.resolve("upper"));
+            Files.createDirectories(upper.resolve("etc"));
+            Files.createDirectories(upper.resolve("dir"));
+            Files.writeString(upper.resolve("etc/.wh.a"), "");
+            Files.writeString(upper.resolve("dir/.wh..wh..opq"), "");
+            Files.writeString(upper.resolve("dir/y"), "y");
+            String lowerDigest = registry.putBlob(gzipTar(lower));
+            String upperDigest = registry.putBlob(gzipTar(upper));
+            String configDigest = registry.putBlob("""
+                    { "rootfs": { "type": "layers", "diff_ids": ["sha256:lower", "sha256:upper"] } }""".getBytes());
+            String manifest = """
+                    { "schemaVersion": 2, "mediaType": "application/vnd.oci.image.manifest.v1+json",
+                      "config": { "mediaType": "application/vnd.oci.image.config.v1+json", "digest": "%s" },
+                      "layers": [ { "mediaType": "application/vnd.oci.image.layer.v1.tar+gzip", "digest": "%s" },
+                                  { "mediaType": "application/vnd.oci.image.layer.v1.tar+gzip", "digest": "%s" } ] }
+                    """.formatted(configDigest, lowerDigest, upperDigest);
+            String manifestDigest = registry.putManifest("distroless/base", "amd64", RegistryClient.OCI_MANIFEST, manifest);
+            registry.putManifest("distroless/base", "latest", RegistryClient.OCI_INDEX, """
+                    { "schemaVersion": 2, "manifests": [
+                      { "digest": "sha256:%s", "platform": { "architecture": "arm64", "os": "linux" } },
+                      { "digest": "%s", "platform": { "architecture": "amd64", "os": "linux" } } ] }
+                    """.formatted("0".repeat(64), manifestDigest));
+
+            // --- 2. Download through token auth, with the first blob response cut off midway ---
+            registry.truncateBlobResponses.set(1);
+            Path downloads = Files.createDirectories(work.resolve("downloads"));
+            List<Path> layers = OCIImageBuilder.downloadDistrolessBaseLayer(registry.host() + "/distroless/base:latest",
+                    Platform.LINUX_AMD64, downloads);
+            if (layers.size() != 2) throw new AssertionError("Expected 2 layers, got " + layers.size());
+            if (registry.blobRequests.get() != 3) {
+                throw new AssertionError("Expected one resumed request, got " + registry.blobRequests.get() + " requests");
+            }
+
+            // --- 3. Flattening applies whiteouts ---
+            ByteArrayOutputStream flat = new ByteArrayOutputStream();
+            OCIImageBuilder.flattenLayers(layers, flat);
+            Set<String> names = new TreeSet<>();
+            TarReader reader = new TarReader(new ByteArrayInputStream(flat.toByteArray()));
+            for (TarReader.Entry e; (e = reader.next()) != null; ) names.add(e.name());
+            for (String expected : List.of("etc/b", "dir/y")) {
+                if (!names.contains(expected)) throw new AssertionError("Missing " + expected + " in " + names);
+            }
+            for (String deleted : List.of("etc/a", "dir/x", "etc/.wh.a", "dir/.wh..wh..opq")) {
+                if (names.contains(deleted)) throw new AssertionError("Should be gone: " + deleted + " in " + names);
+            }
+
+            // --- 4. Verbatim mode keeps upstream blobs, media types and diff_ids ---
+            Path blobs = Files.createDirectories(work.resolve("blobs"));
+            List<Layer> verbatim = OCIImageBuilder.downloadBaseLayersVerbatim(registry.host() + "/distroless/base:latest",
+                    Platform.LINUX_AMD64, blobs);
+            if (!verbatim.get(0).digest().equals(lowerDigest.substring(7)) || !verbatim.get(1).diffId().equals("sha256:upper")
+                    || !verbatim.get(1).mediaType().equals(Layer.MEDIA_TYPE_TAR_GZIP)) {
+                throw new AssertionError("Upstream layers not preserved: " + verbatim);
+            }
+            if (!Arrays.equals(Files.readAllBytes(blobs.resolve(upperDigest.substring(7))), registry.blobs.get(upperDigest))) {
+                throw new AssertionError("Upstream blob not copied byte for byte");
+            }
+
+            // --- 5. A resumed download answered with another range starts over instead of appending it ---
+            RegistryClient client = new RegistryClient(registry.host());
+            registry.truncateBlobResponses.set(1);
+            registry.misalignRanges.set(1);
+            int requests = registry.blobRequests.get();
+            client.fetchBlob("distroless/base", upperDigest, work.resolve("misaligned"));
+            if (registry.blobRequests.get() - requests != 3) {
+                throw new AssertionError("Expected cut, misaligned and full requests, got " + (registry.blobRequests.get() - requests));
+            }
+
+            // --- 6. Corrupted content is rejected ---
+            registry.blobs.put(lowerDigest, "tampered".getBytes());
+            try {
+                client.fetchBlob("distroless/base", lowerDigest, work.resolve("tampered"));
+                throw new AssertionError("Digest mismatch not detected");
+            } catch (IOException expected) {
+                if (!expected.getMessage().contains("Digest mismatch")) throw expected;
+            }
+        }
+
+        System.out.println("All RegistryClient assertions passed!");
+        cleanDir(workDir);
+    }
+
+    static byte[] gzipTar(Path dir) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            OCIImageBuilder.createTarWithDir(dir.toString(), "/", gz, 0L);
+        }
+        return out.toByteArray();
+    }
+
+    static void cleanDir(String dir) throws IOException {
+        Path d = Paths.get(dir);
+        if (Files.exists(d)) Files.walk(d)
+                .sorted(Comparator.reverseOrder())
+                .forEach(path -> {
+                    try { Files.delete(path); } catch (IOException ignored) {}
+                });
+    }
+}
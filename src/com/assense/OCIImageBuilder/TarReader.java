@@ -0,0 +1,150 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Sequential tar reader that keeps the raw header blocks of each entry (including PAX and GNU
+ * long-name pre-headers), so entries can be copied into another archive byte for byte.
+ */
+public class TarReader {
+    /**
+     * One archive entry.
+     *
+     * @param name     entry path with PAX / GNU long names applied
+     * @param type     ustar type flag ('0' file, '1' hard link, '2' symlink, '5' directory, ...)
+     * @param size     size of the entry data in bytes
+     * @param linkName link target for links, otherwise empty
+     * @param headers  all raw header blocks belonging to this entry
+     */
+    public record Entry(String name, char type, long size, String linkName, byte[] headers) {
+    }
+
+    private final InputStream in;
+    private long remaining;   // data + padding of the current entry not yet consumed
+
+    public TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /** Returns the next entry, skipping any unread data of the previous one, or null at the end. */
+    public Entry next() throws IOException {
+        skipData();
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        String paxPath = null, paxLink = null, gnuName = null, gnuLink = null;
+        long paxSize = -1;
+        while (true) {
+            byte[] block = readBlock();
+            if (block == null || isZero(block)) return null;
+            headers.writeBytes(block);
+            char type = (char) block[156];
+            long size = parseNumber(block, 124, 12);
+            switch (type) {
+                case 'x', 'g' -> {
+                    byte[] data = readData(size, headers);
+                    if (type == 'x') {
+                        paxPath = paxValue(data, "path", paxPath);
+                        paxLink = paxValue(data, "linkpath", paxLink);
+                        String s = paxValue(data, "size", null);
+                        if (s != null) paxSize = Long.parseLong(s);
+                    }
+                }
+                case 'L' -> gnuName = cString(readData(size, headers));
+                case 'K' -> gnuLink = cString(readData(size, headers));
+                default -> {
+                    String name = paxPath != null ? paxPath : gnuName != null ? gnuName : ustarName(block);
+                    String link = paxLink != null ? paxLink : gnuLink != null ? gnuLink : field(block, 157, 100);
+                    long entrySize = paxSize >= 0 ? paxSize : size;
+                    boolean hasData = type != '1' && type != '2' && type != '3' && type != '4' && type != '5' && type != '6';
+                    remaining = hasData ? padded(entrySize) : 0;
+                    return new Entry(name, type == 0 ? '0' : type, hasData ? entrySize : 0, link, headers.toByteArray());
+                }
+            }
+        }
+    }
+
+    /** Copies the current entry's data including block padding to {@code out}. */
+    public void copyData(OutputStream out) throws IOException {
+        byte[] buf = new byte[OCIImageBuilder.BUFFER_SIZE];
+        while (remaining > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n < 0) throw new EOFException("Truncated tar entry");
+            out.write(buf, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private void skipData() throws IOException {
+        copyData(OutputStream.nullOutputStream());
+    }
+
+    private byte[] readData(long size, ByteArrayOutputStream headers) throws IOException {
+        byte[] data = in.readNBytes((int) padded(size));
+        if (data.length < padded(size)) throw new EOFException("Truncated tar header");
+        headers.writeBytes(data);
+        return Arrays.copyOf(data, (int) size);
+    }
+
+    private byte[] readBlock() throws IOException {
+        byte[] block = in.readNBytes(TarWriter.BLOCK);
+        if (block.length == 0) return null;
+        if (block.length < TarWriter.BLOCK) throw new EOFException("Truncated tar block");
+        return block;
+    }
+
+    static long padded(long size) {
+        return (size + TarWriter.BLOCK - 1) / TarWriter.BLOCK * TarWriter.BLOCK;
+    }
+
+    private static String ustarName(byte[] block) {
+        String name = field(block, 0, 100);
+        boolean ustar = field(block, 257, 6).startsWith("ustar");
+        String prefix = ustar ? field(block, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private static String paxValue(byte[] records, String key, String fallback) {
+        int pos = 0;
+        while (pos < records.length) {
+            int space = pos;
+            while (space < records.length && records[space] != ' ') space++;
+            if (space >= records.length) break;
+            int len = Integer.parseInt(new String(records, pos, space - pos, StandardCharsets.US_ASCII));
+            if (len <= space - pos + 1 || pos + len > records.length) break;
+            // "<len> <key>=<value>\n", len counting the whole record in bytes
+            String record = new String(records, space + 1, pos + len - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith(key + "=")) return record.substring(key.length() + 1);
+            pos += len;
+        }
+        return fallback;
+    }
+
+    private static long parseNumber(byte[] block, int off, int len) {
+        if ((block[off] & 0x80) != 0) {
+            // GNU base-256 encoding for values that do not fit in octal
+            long v = block[off] & 0x7f;
+            for (int i = off + 1; i < off + len; i++) v = (v << 8) | (block[i] & 0xff);
+            return v;
+        }
+        String s = field(block, off, len).trim();
+        return s.isEmpty() ? 0 : Long.parseLong(s, 8);
+    }
+
+    private static String field(byte[] block, int off, int len) {
+        int end = off;
+        while (end < off + len && block[end] != 0) end++;
+        return new String(block, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    private static String cString(byte[] data) {
+        int end = 0;
+        while (end < data.length && data[end] != 0) end++;
+        return new String(data, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) if (b != 0) return false;
+        return true;
+    }
+}
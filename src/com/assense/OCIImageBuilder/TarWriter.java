@@ -0,0 +1,407 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * In-process tar writer producing POSIX archives (ustar headers, PAX extended headers where ustar
+ * falls short), so layers can be streamed without spawning GNU tar.
+ * <p>
+ * Entries are always written in sorted order. In reproducible mode (a fixed mtime is given),
+ * ownership is normalized to root and permissions to 0755/0644, so identical trees produce
+ * byte-identical archives regardless of where and when they were built.
+ */
+public class TarWriter {
+    static final int BLOCK = 512;
+    static final int DIR_MODE = 0755;
+    static final int FILE_MODE = 0644;
+
+    private static final byte[] ZEROS = new byte[BLOCK * 2];
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final long MAX_OCTAL_ID = 07777777L;
+
+    private final CountingOutputStream out;
+    private final WritableByteChannel channel;
+    // mtime (epoch seconds) for all entries in reproducible mode, null to keep file metadata
+    private final Long fixedMtime;
+    // previously archived file contents to copy instead of reading the files, or null
+    private final ContentSource contentSource;
+    // (dev, inode) of multiply-linked files already written, to emit later occurrences as hard links
+    private final Map<List<Object>, String> hardLinks = new HashMap<>();
+
+    /**
+     * Supplies the content of regular files from an earlier archive instead of the files
+     * themselves; see {@link IncrementalLayer}. Offsets are positions in the archive being written.
+     */
+    interface ContentSource {
+        /**
+         * Appends the padded content of {@code file}, archived as {@code name}, directly to the
+         * underlying output if it is unchanged since the earlier archive; false to read the file.
+         */
+        boolean copy(Path file, String name, Map<String, Object> attrs, long offset) throws IOException;
+
+        /** Notes that the content of {@code file}, read from the file, was written at {@code offset}. */
+        void archived(Path file, String name, Map<String, Object> attrs, long offset) throws IOException;
+    }
+
+    public TarWriter(OutputStream out) {
+        this(out, null);
+    }
+
+    public TarWriter(OutputStream out, Long fixedMtime) {
+        this(out, fixedMtime, null);
+    }
+
+    TarWriter(OutputStream out, Long fixedMtime, ContentSource contentSource) {
+        this.out = new CountingOutputStream(out);
+        this.channel = Channels.newChannel(this.out);
+        this.fixedMtime = fixedMtime;
+        this.contentSource = contentSource;
+    }
+
+    /**
+     * Returns the mtime to use for reproducible archives: {@code SOURCE_DATE_EPOCH} when set,
+     * otherwise the Unix epoch.
+     */
+    public static long reproducibleEpoch() {
+        String sourceDateEpoch = System.getenv("SOURCE_DATE_EPOCH");
+        if (sourceDateEpoch == null || sourceDateEpoch.isBlank()) return 0;
+        try {
+            return Long.parseLong(sourceDateEpoch.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("SOURCE_DATE_EPOCH is not a number: " + sourceDateEpoch);
+        }
+    }
+
+    /** Metadata of one archive entry; {@code uname}/{@code gname} may be empty. */
+    record Entry(String name, char type, int mode, long uid, long gid, String uname, String gname,
+                 long mtime, long size, String linkName) {
+    }
+
+    /**
+     * Adds the content of {@code srcDir} below {@code targetDir} (e.g. {@code /opt/jre}); the
+     * directories making up {@code targetDir} are added too. An empty or "/" target puts the
+     * content at the archive root.
+     */
+    public void addTree(Path srcDir, String targetDir) throws IOException {
+        addTree(srcDir, targetDir, null);
+    }
+
+    /**
+     * Like {@link #addTree(Path, String)}, but adds only entries whose path relative to
+     * {@code srcDir} passes {@code include} (null for all). Directories are added when they hold
+     * an included entry, or when they are empty and included themselves.
+     */
+    public void addTree(Path srcDir, String targetDir, Predicate<Path> include) throws IOException {
+        String prefix = targetDir.replaceAll("^/+|/+$", "");
+        Map<String, Object> rootAttrs = readAttributes(srcDir);
+        long rootMtime = fixedMtime != null ? fixedMtime
+                : ((FileTime) rootAttrs.get("lastModifiedTime")).to(TimeUnit.SECONDS);
+        if (!prefix.isEmpty()) {
+            String[] parts = prefix.split("/+");
+            StringBuilder path = new StringBuilder();
+            for (int i = 0; i < parts.length - 1; i++) {
+                path.append(parts[i]).append('/');
+                writeHeader(new Entry(path.toString(), '5', DIR_MODE, 0, 0, "root", "root", rootMtime, 0, ""));
+            }
+            add(srcDir, prefix + "/");
+        }
+        addChildren(srcDir, srcDir, prefix, include != null ? include : p -> true, new ArrayList<>());
+    }
+
+    // Depth-first walk with children in name order, so the archive does not depend on directory order.
+    // Directory entries wait in pending until something below them is written; returns the child count
+    private int addChildren(Path root, Path dir, String prefix, Predicate<Path> include, List<Path> pending)
+            throws IOException {
+        List<Path> children;
+        try (var stream = Files.list(dir)) {
+            children = stream.sorted(Comparator.comparing(p -> p.getFileName().toString())).toList();
+        }
+        for (Path child : children) {
+            Path relative = root.relativize(child);
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                pending.add(child);
+                int grandchildren = addChildren(root, child, prefix, include, pending);
+                if (!pending.isEmpty() && pending.get(pending.size() - 1).equals(child)) {
+                    // nothing below was written
+                    if (grandchildren == 0 && include.test(relative)) writePending(root, prefix, pending);
+                    else pending.remove(pending.size() - 1);
+                }
+            } else if (include.test(relative)) {
+                writePending(root, prefix, pending);
+                add(child, entryName(prefix, relative));
+            }
+        }
+        return children.size();
+    }
+
+    private void writePending(Path root, String prefix, List<Path> pending) throws IOException {
+        for (Path dir : pending) add(dir, entryName(prefix, root.relativize(dir)));
+        pending.clear();
+    }
+
+    /** Adds a single file system object (directory, regular file or symlink) under the given name. */
+    public void add(Path path, String name) throws IOException {
+        Map<String, Object> attrs = readAttributes(path);
+        int mode = attrs.containsKey("mode") ? (Integer) attrs.get("mode") & 07777 : -1;
+        long uid = ((Number) attrs.getOrDefault("uid", 0)).longValue();
+        long gid = ((Number) attrs.getOrDefault("gid", 0)).longValue();
+        String uname = attrs.containsKey("owner") ? attrs.get("owner").toString() : "";
+        String gname = attrs.containsKey("group") ? attrs.get("group").toString() : "";
+        long mtime = ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.SECONDS);
+        if (fixedMtime != null) {
+            boolean executable = mode >= 0 && (mode & 0100) != 0;
+            mode = Boolean.TRUE.equals(attrs.get("isRegularFile")) && !executable ? FILE_MODE : DIR_MODE;
+            if (Boolean.TRUE.equals(attrs.get("isSymbolicLink"))) mode = 0777;
+            uid = gid = 0;
+            uname = gname = "root";
+            mtime = fixedMtime;
+        }
+
+        if (Boolean.TRUE.equals(attrs.get("isSymbolicLink"))) {
+            String target = Files.readSymbolicLink(path).toString();
+            writeHeader(new Entry(name, '2', mode < 0 ? 0777 : mode, uid, gid, uname, gname, mtime, 0, target));
+        } else if (Boolean.TRUE.equals(attrs.get("isDirectory"))) {
+            writeHeader(new Entry(name.endsWith("/") ? name : name + "/", '5', mode < 0 ? DIR_MODE : mode,
+                    uid, gid, uname, gname, mtime, 0, ""));
+        } else if (Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+            if (((Number) attrs.getOrDefault("nlink", 1)).intValue() > 1) {
+                List<Object> key = List.of(attrs.get("dev"), attrs.get("ino"));
+                String first = hardLinks.putIfAbsent(key, name);
+                if (first != null) {
+                    writeHeader(new Entry(name, '1', mode < 0 ? FILE_MODE : mode, uid, gid, uname, gname, mtime, 0, first));
+                    return;
+                }
+            }
+            long size = (Long) attrs.get("size");
+            writeHeader(new Entry(name, '0', mode < 0 ? FILE_MODE : mode, uid, gid, uname, gname, mtime, size, ""));
+            if (contentSource == null) {
+                writeContent(path, size);
+                return;
+            }
+            // the source appends to the underlying output, behind anything still buffered here
+            out.flush();
+            long offset = out.count;
+            if (contentSource.copy(path, name, attrs, offset)) {
+                out.count += paddedSize(size);
+            } else {
+                writeContent(path, size);
+                contentSource.archived(path, name, attrs, offset);
+            }
+        } else {
+            System.err.println("Skipping special file " + path);
+        }
+    }
+
+    /**
+     * Adds a directory entry owned by root, independent of any file system object. {@code mtime}
+     * is in epoch seconds; in reproducible mode the fixed mtime wins.
+     */
+    public void addDirectory(String name, long mtime) throws IOException {
+        writeHeader(new Entry(name.endsWith("/") ? name : name + "/", '5', DIR_MODE, 0, 0, "root", "root",
+                fixedMtime != null ? fixedMtime : mtime, 0, ""));
+    }
+
+    /** Adds a regular file entry owned by root with the content of {@code file}, e.g. a blob. */
+    public void addFile(String name, Path file, long mtime) throws IOException {
+        long size = Files.size(file);
+        writeHeader(new Entry(name, '0', FILE_MODE, 0, 0, "root", "root", fixedMtime != null ? fixedMtime : mtime, size, ""));
+        writeContent(file, size);
+    }
+
+    /** Adds a regular file entry owned by root with {@code data} as content. */
+    public void addFile(String name, byte[] data, long mtime) throws IOException {
+        writeHeader(new Entry(name, '0', FILE_MODE, 0, 0, "root", "root", fixedMtime != null ? fixedMtime : mtime,
+                data.length, ""));
+        out.write(data);
+        pad(data.length);
+    }
+
+    /** Writes the end-of-archive marker; the underlying stream is flushed but left open. */
+    public void finish() throws IOException {
+        out.write(ZEROS);
+        out.flush();
+    }
+
+    void writeContent(Path file, long size) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long pos = 0;
+            while (pos < size) {
+                long n = fc.transferTo(pos, size - pos, channel);
+                if (n <= 0) throw new IOException("File shrank while archiving: " + file);
+                pos += n;
+            }
+        }
+        BuildMetrics.current().bytesRead.addAndGet(size);
+        pad(size);
+    }
+
+    static long paddedSize(long size) {
+        return (size + BLOCK - 1) / BLOCK * BLOCK;
+    }
+
+    void pad(long size) throws IOException {
+        int rest = (int) (size % BLOCK);
+        if (rest != 0) out.write(ZEROS, 0, BLOCK - rest);
+    }
+
+    void writeHeader(Entry e) throws IOException {
+        Map<String, String> pax = new TreeMap<>();
+        String name = e.name(), prefix = "";
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100 || !isAscii(name)) {
+            int split = splitPoint(name);
+            if (split > 0) {
+                prefix = name.substring(0, split);
+                name = name.substring(split + 1);
+            } else {
+                pax.put("path", e.name());
+                name = truncate(e.name(), 100);
+            }
+        }
+        String linkName = e.linkName();
+        if (linkName.getBytes(StandardCharsets.UTF_8).length > 100 || !isAscii(linkName)) {
+            pax.put("linkpath", linkName);
+            linkName = truncate(linkName, 100);
+        }
+        if (e.size() > MAX_OCTAL_SIZE) pax.put("size", Long.toString(e.size()));
+        if (e.uid() > MAX_OCTAL_ID) pax.put("uid", Long.toString(e.uid()));
+        if (e.gid() > MAX_OCTAL_ID) pax.put("gid", Long.toString(e.gid()));
+        if (e.mtime() < 0 || e.mtime() > MAX_OCTAL_SIZE) pax.put("mtime", Long.toString(e.mtime()));
+        if (!isAscii(e.uname()) || e.uname().length() > 31) pax.put("uname", e.uname());
+        if (!isAscii(e.gname()) || e.gname().length() > 31) pax.put("gname", e.gname());
+
+        if (!pax.isEmpty()) {
+            byte[] records = paxRecords(pax);
+            out.write(header("PaxHeaders/" + truncate(baseName(e.name()), 88), "", 'x', 0644, 0, 0, "", "",
+                    Math.max(0, Math.min(e.mtime(), MAX_OCTAL_SIZE)), records.length, ""));
+            out.write(records);
+            pad(records.length);
+        }
+        out.write(header(name, prefix, e.type(), e.mode(), Math.min(e.uid(), MAX_OCTAL_ID), Math.min(e.gid(), MAX_OCTAL_ID),
+                truncate(e.uname(), 31), truncate(e.gname(), 31),
+                Math.max(0, Math.min(e.mtime(), MAX_OCTAL_SIZE)), Math.min(e.size(), MAX_OCTAL_SIZE), linkName));
+    }
+
+    static byte[] header(String name, String prefix, char type, int mode, long uid, long gid,
+                         String uname, String gname, long mtime, long size, String linkName) {
+        byte[] h = new byte[BLOCK];
+        put(h, 0, 100, name);
+        octal(h, 100, 8, mode);
+        octal(h, 108, 8, uid);
+        octal(h, 116, 8, gid);
+        octal(h, 124, 12, size);
+        octal(h, 136, 12, mtime);
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        h[156] = (byte) type;
+        put(h, 157, 100, linkName);
+        put(h, 257, 6, "ustar");
+        put(h, 263, 2, "00");
+        put(h, 265, 32, uname);
+        put(h, 297, 32, gname);
+        octal(h, 329, 8, 0);
+        octal(h, 337, 8, 0);
+        put(h, 345, 155, prefix);
+        long sum = 0;
+        for (byte b : h) sum += b & 0xff;
+        octal(h, 148, 7, sum);
+        return h;
+    }
+
+    static byte[] paxRecords(Map<String, String> pax) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        pax.forEach((k, v) -> {
+            int payload = (" " + k + "=" + v + "\n").getBytes(StandardCharsets.UTF_8).length;
+            int len = payload + 1;
+            while (len != payload + Integer.toString(len).length()) len = payload + Integer.toString(len).length();
+            buf.writeBytes((len + " " + k + "=" + v + "\n").getBytes(StandardCharsets.UTF_8));
+        });
+        return buf.toByteArray();
+    }
+
+    static Map<String, Object> readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path,
+                    "unix:mode,uid,gid,owner,group,nlink,dev,ino,size,lastModifiedTime,isDirectory,isRegularFile,isSymbolicLink",
+                    LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Files.readAttributes(path, "basic:*", LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    static String entryName(String prefix, Path relative) {
+        String rel = relative.toString().replace(File.separatorChar, '/');
+        if (prefix.isEmpty()) return rel;
+        return rel.isEmpty() ? prefix + "/" : prefix + "/" + rel;
+    }
+
+    // Index of the '/' splitting name into a ustar prefix (<= 155 bytes) and name (<= 100 bytes), or -1
+    private static int splitPoint(String name) {
+        if (!isAscii(name)) return -1;
+        String trimmed = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+        for (int i = Math.min(trimmed.length() - 1, 155); i > 0; i--) {
+            if (trimmed.charAt(i) == '/' && name.length() - i - 1 <= 100) return i;
+        }
+        return -1;
+    }
+
+    private static String baseName(String name) {
+        String trimmed = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+        return trimmed.substring(trimmed.lastIndexOf('/') + 1);
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) if (s.charAt(i) > 0x7e || s.charAt(i) < 0x20) return false;
+        return true;
+    }
+
+    private static String truncate(String s, int max) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length() && sb.length() < max; i++) {
+            char c = s.charAt(i);
+            sb.append(c > 0x7e || c < 0x20 ? '_' : c);
+        }
+        return sb.toString();
+    }
+
+    private static void put(byte[] h, int off, int len, String s) {
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(b, 0, h, off, Math.min(b.length, len));
+    }
+
+    private static void octal(byte[] h, int off, int len, long value) {
+        String s = Long.toOctalString(value);
+        s = "0".repeat(Math.max(0, len - 1 - s.length())) + s;
+        put(h, off, len - 1, s);
+        h[off + len - 1] = 0;
+    }
+
+    // Tracks the archive size, i.e. the offset of the next entry
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
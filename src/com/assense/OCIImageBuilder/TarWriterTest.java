@@ -0,0 +1,122 @@
+package com.assense.OCIImageBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+public class TarWriterTest {
+    public static void main(String[] args) throws Exception {
+        String srcDir = "test-tar-src";
+        String extractDir = "test-tar-extract";
+        String tarFile = "test-tar.tar";
+        cleanDir(srcDir);
+        cleanDir(extractDir);
+        Files.deleteIfExists(Paths.get(tarFile));
+
+        // --- 1. Source tree with the cases tar gets wrong most often ---
+        Path src = Paths.get(srcDir);
+        Files.createDirectories(src.resolve("bin"));
+        Path java = Files.writeString(src.resolve("bin/java"), "#!/bin/sh\necho hi\n");
+        Files.setPosixFilePermissions(java, PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.createSymbolicLink(src.resolve("bin/java-link"), Paths.get("java"));
+        String longDir = "a".repeat(90) + "/" + "b".repeat(90) + "/" + "c".repeat(90);
+        Files.createDirectories(src.resolve(longDir));
+        Files.writeString(src.resolve(longDir).resolve("long-file.txt"), "long path");
+        // file names are bytes in sun.jnu.encoding; a non-ASCII one only maps to disk under UTF-8
+        String unicodeName = "gr\u00fc\u00dfe.txt";
+        boolean unicodeOnDisk = "UTF-8".equalsIgnoreCase(System.getProperty("sun.jnu.encoding"));
+        if (unicodeOnDisk) Files.writeString(src.resolve(unicodeName), "unicode");
+        else System.out.println("Not testing a non-ASCII file on disk: sun.jnu.encoding is not UTF-8");
+        byte[] big = new byte[100_000];
+        new Random(42).nextBytes(big);
+        Files.write(src.resolve("big.bin"), big);
+
+        // --- 2. Write archive placed at /opt/jre ---
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(tarFile)))) {
+            OCIImageBuilder.createTarWithDir(srcDir, "/opt/jre", out, null);
+        }
+        if (Files.size(Paths.get(tarFile)) % TarWriter.BLOCK != 0) {
+            throw new AssertionError("tar size is not a multiple of the block size");
+        }
+
+        // --- 3. GNU tar must read it back unchanged ---
+        String listing = runCmdCapture("tar", "tvf", tarFile);
+        List<String> expectedEntries = new ArrayList<>(List.of("opt/jre/bin/java", "opt/jre/bin/java-link -> java",
+                "opt/jre/" + longDir + "/long-file.txt"));
+        if (unicodeOnDisk) expectedEntries.add("opt/jre/" + unicodeName);
+        for (String expected : expectedEntries) {
+            if (!listing.contains(expected)) throw new AssertionError("Missing entry " + expected + " in\n" + listing);
+        }
+        if (!listing.contains("-rwxr-xr-x")) throw new AssertionError("Executable mode lost:\n" + listing);
+
+        Files.createDirectories(Paths.get(extractDir));
+        runCmdCapture("tar", "xf", tarFile, "-C", extractDir);
+        Path root = Paths.get(extractDir, "opt/jre");
+        if (!Files.readString(root.resolve(longDir).resolve("long-file.txt")).equals("long path")) {
+            throw new AssertionError("long path content mismatch");
+        }
+        if (!Arrays.equals(Files.readAllBytes(root.resolve("big.bin")), big)) {
+            throw new AssertionError("big file content mismatch");
+        }
+        if (!Files.readSymbolicLink(root.resolve("bin/java-link")).toString().equals("java")) {
+            throw new AssertionError("symlink target mismatch");
+        }
+
+        // --- 3b. A non-ASCII entry name is stored as UTF-8, whatever the file system encoding ---
+        ByteArrayOutputStream named = new ByteArrayOutputStream();
+        TarWriter tar = new TarWriter(named, 0L);
+        tar.addFile("opt/" + unicodeName, "unicode".getBytes(StandardCharsets.UTF_8), 0L);
+        tar.finish();
+        // read back by hand: the PAX header ('x') before the entry holds its name as a UTF-8 path record
+        byte[] archive = named.toByteArray();
+        if (archive[156] != 'x') throw new AssertionError("No PAX header for a non-ASCII name");
+        int paxSize = Integer.parseInt(new String(archive, 124, 11, StandardCharsets.US_ASCII).trim(), 8);
+        if (!new String(archive, TarWriter.BLOCK, paxSize, StandardCharsets.UTF_8).contains(" path=opt/" + unicodeName + "\n")) {
+            throw new AssertionError("Non-ASCII entry name not read back");
+        }
+
+        // --- 4. Reproducible mode ignores mtimes and ownership ---
+        byte[] first = reproducibleTar(srcDir);
+        Files.setLastModifiedTime(java, FileTime.fromMillis(0));
+        Files.setLastModifiedTime(src.resolve("bin"), FileTime.fromMillis(123_000));
+        byte[] second = reproducibleTar(srcDir);
+        if (!Arrays.equals(first, second)) throw new AssertionError("reproducible archives differ");
+        String reproducibleListing = runCmdCapture("tar", "--utc", "-tvf", tarFile);
+        if (!reproducibleListing.contains("-rwxr-xr-x root/root") || !reproducibleListing.contains("1970-01-01")) {
+            throw new AssertionError("ownership/mtime not normalized:\n" + reproducibleListing);
+        }
+
+        System.out.println("All TarWriter assertions passed!");
+        cleanDir(srcDir);
+        cleanDir(extractDir);
+        Files.deleteIfExists(Paths.get(tarFile));
+    }
+
+    static byte[] reproducibleTar(String srcDir) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OCIImageBuilder.createTarWithDir(srcDir, "/opt/jre", out, 0L);
+        Files.write(Paths.get("test-tar.tar"), out.toByteArray());
+        return out.toByteArray();
+    }
+
+    static String runCmdCapture(String... args) throws Exception {
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        String out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (p.waitFor() != 0) throw new RuntimeException("Command failed: " + String.join(" ", args) + "\n" + out);
+        return out;
+    }
+
+    static void cleanDir(String dir) throws IOException {
+        Path d = Paths.get(dir);
+        if (Files.exists(d)) Files.walk(d)
+                .sorted(Comparator.reverseOrder())
+                .forEach(path -> {
+                    try { Files.delete(path); } catch (IOException ignored) {}
+                });
+    }
+}
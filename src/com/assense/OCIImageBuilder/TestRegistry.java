@@ -0,0 +1,262 @@
+package com.assense.OCIImageBuilder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory stand-in for an OCI registry, for tests. Serves manifests and blobs (with range
+ * requests) behind bearer-token auth, and can inject truncated blob responses, misaligned ranges
+ * and 503 answers. Accepts pushes: chunked blob uploads, cross-repository mounts and manifest
+ * PUTs, logged in {@link #events}.
+ */
+public final class TestRegistry implements AutoCloseable {
+    static final String TOKEN = "test-token";
+    private static final Pattern PATH = Pattern.compile("^/v2/(.+)/(manifests|blobs)/([^/]+)$");
+    private static final Pattern UPLOAD = Pattern.compile("^/v2/(.+)/blobs/uploads/([^/]*)$");
+
+    final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+    final Map<String, String[]> manifests = new ConcurrentHashMap<>();  // "repo:ref" -> {mediaType, body}
+    final AtomicInteger truncateBlobResponses = new AtomicInteger();
+    // range requests answered from the start of the blob, like a misbehaving proxy
+    final AtomicInteger misalignRanges = new AtomicInteger();
+    final AtomicInteger blobRequests = new AtomicInteger();
+    // authenticated requests answered 503 before they take effect
+    final AtomicInteger unavailableResponses = new AtomicInteger();
+    // blobs seeded with putBlob(byte[]) are visible in every repository, pushed ones only where pushed
+    private final Set<String> sharedBlobs = ConcurrentHashMap.newKeySet();
+    private final Set<String> repositoryBlobs = ConcurrentHashMap.newKeySet();  // "repo@digest"
+    private final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Integer> uploadChunks = new ConcurrentHashMap<>();
+    /**
+     * "mount &lt;repo&gt;@&lt;digest&gt; from &lt;repo&gt;", "upload &lt;repo&gt;@&lt;digest&gt; in &lt;n&gt; chunks"
+     * and "manifest &lt;repo&gt;:&lt;ref&gt;" for each completed push, in order. Unlike request counts,
+     * these do not change when a client retries a request.
+     */
+    final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    public TestRegistry() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", ex -> {
+            ex.getResponseHeaders().add("Connection", "close");
+            respond(ex, 200, "application/json", ("{\"token\":\"" + TOKEN + "\"}").getBytes(StandardCharsets.UTF_8));
+        });
+        server.createContext("/v2/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** {@code localhost:<port>}, usable as registry part of an image reference. */
+    public String host() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    public String putBlob(byte[] content) throws Exception {
+        String digest = "sha256:" + Digests.sha256(content);
+        blobs.put(digest, content);
+        sharedBlobs.add(digest);
+        return digest;
+    }
+
+    /** Stores a blob visible in {@code repository} only. */
+    public String putBlob(String repository, byte[] content) throws Exception {
+        String digest = "sha256:" + Digests.sha256(content);
+        blobs.put(digest, content);
+        repositoryBlobs.add(repository + "@" + digest);
+        return digest;
+    }
+
+    public boolean hasBlob(String repository, String digest) {
+        return blobs.containsKey(digest) && (sharedBlobs.contains(digest) || repositoryBlobs.contains(repository + "@" + digest));
+    }
+
+    public String putManifest(String repository, String tag, String mediaType, String body) throws Exception {
+        String digest = "sha256:" + Digests.sha256(body.getBytes(StandardCharsets.UTF_8));
+        manifests.put(repository + ":" + tag, new String[]{mediaType, body});
+        manifests.put(repository + ":" + digest, new String[]{mediaType, body});
+        return digest;
+    }
+
+    private void handle(HttpExchange ex) {
+        try {
+            // HttpServer drops a connection whose request body went unread (e.g. a PATCH answered
+            // 401), which a client may be reusing at that moment; one request per connection avoids it
+            ex.getResponseHeaders().add("Connection", "close");
+            if (!("Bearer " + TOKEN).equals(ex.getRequestHeaders().getFirst("Authorization"))) {
+                ex.getResponseHeaders().add("WWW-Authenticate", "Bearer realm=\"http://" + host()
+                        + "/token\",service=\"test\"");
+                respond(ex, 401, "application/json", "{\"errors\":[{\"code\":\"UNAUTHORIZED\"}]}".getBytes());
+                return;
+            }
+            if (unavailableResponses.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                respond(ex, 503, "application/json", "{\"errors\":[{\"code\":\"UNAVAILABLE\"}]}".getBytes());
+                return;
+            }
+            Matcher upload = UPLOAD.matcher(ex.getRequestURI().getPath());
+            if (upload.matches()) {
+                handleUpload(ex, upload.group(1), upload.group(2));
+                return;
+            }
+            Matcher m = PATH.matcher(ex.getRequestURI().getPath());
+            if (!m.matches()) {
+                respond(ex, 404, "text/plain", new byte[0]);
+                return;
+            }
+            String repository = m.group(1), kind = m.group(2), reference = m.group(3);
+            boolean head = ex.getRequestMethod().equals("HEAD");
+            if (kind.equals("manifests") && ex.getRequestMethod().equals("PUT")) {
+                String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                String digest = putManifest(repository, reference, ex.getRequestHeaders().getFirst("Content-Type"), body);
+                events.add("manifest " + repository + ":" + reference);
+                ex.getResponseHeaders().add("Docker-Content-Digest", digest);
+                respond(ex, 201, "application/json", new byte[0]);
+                return;
+            }
+            if (kind.equals("manifests")) {
+                String[] manifest = manifests.get(repository + ":" + reference);
+                if (manifest == null) respond(ex, 404, "application/json", new byte[0]);
+                else respond(ex, 200, manifest[0], head ? null : manifest[1].getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            byte[] blob = hasBlob(repository, reference) ? blobs.get(reference) : null;
+            if (blob == null) {
+                respond(ex, 404, "application/json", new byte[0]);
+                return;
+            }
+            blobRequests.incrementAndGet();
+            if (head) {
+                ex.getResponseHeaders().add("Content-Length", Integer.toString(blob.length));
+                ex.sendResponseHeaders(200, -1);
+                return;
+            }
+            int from = 0;
+            String range = ex.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                from = Integer.parseInt(range.substring(6, range.indexOf('-')));
+                if (misalignRanges.getAndUpdate(n -> Math.max(0, n - 1)) > 0) from = 0;
+                ex.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + (blob.length - 1) + "/" + blob.length);
+            }
+            ex.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            ex.sendResponseHeaders(range != null ? 206 : 200, blob.length - from);
+            OutputStream out = ex.getResponseBody();
+            if (truncateBlobResponses.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                // announce the full length, send half of it, then drop the connection
+                out.write(blob, from, (blob.length - from) / 2);
+                out.flush();
+                return;
+            }
+            out.write(blob, from, blob.length - from);
+        } catch (IOException ignored) {
+            // client went away
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                ex.close();
+            } catch (Exception ignored) {
+                // closing a deliberately truncated response fails
+            }
+        }
+    }
+
+    // POST starts an upload (or mounts), PATCH appends a chunk, PUT completes, DELETE cancels
+    private void handleUpload(HttpExchange ex, String repository, String session) throws Exception {
+        Map<String, String> query = new HashMap<>();
+        String rawQuery = ex.getRequestURI().getRawQuery();
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int eq = param.indexOf('=');
+                query.put(param.substring(0, eq), java.net.URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        switch (ex.getRequestMethod()) {
+            case "POST" -> {
+                String mount = query.get("mount"), from = query.get("from");
+                if (mount != null && from != null && hasBlob(from, mount)) {
+                    repositoryBlobs.add(repository + "@" + mount);
+                    events.add("mount " + repository + "@" + mount + " from " + from);
+                    ex.getResponseHeaders().add("Location", "/v2/" + repository + "/blobs/" + mount);
+                    respond(ex, 201, "application/json", new byte[0]);
+                    return;
+                }
+                String id = UUID.randomUUID().toString();
+                uploads.put(id, new ByteArrayOutputStream());
+                uploadChunks.put(id, 0);
+                ex.getResponseHeaders().add("Location", "/v2/" + repository + "/blobs/uploads/" + id + "?state=" + id);
+                respond(ex, 202, "application/json", new byte[0]);
+            }
+            case "PATCH" -> {
+                ByteArrayOutputStream data = uploads.get(session);
+                if (data == null) {
+                    respond(ex, 404, "application/json", new byte[0]);
+                    return;
+                }
+                String range = ex.getRequestHeaders().getFirst("Content-Range");
+                if (range == null || Long.parseLong(range.substring(0, range.indexOf('-'))) != data.size()) {
+                    respond(ex, 416, "application/json", new byte[0]);
+                    return;
+                }
+                data.writeBytes(ex.getRequestBody().readAllBytes());
+                uploadChunks.merge(session, 1, Integer::sum);
+                ex.getResponseHeaders().add("Location", "/v2/" + repository + "/blobs/uploads/" + session + "?state=" + data.size());
+                ex.getResponseHeaders().add("Range", "0-" + (data.size() - 1));
+                respond(ex, 202, "application/json", new byte[0]);
+            }
+            case "PUT" -> {
+                ByteArrayOutputStream data = uploads.remove(session);
+                Integer chunks = uploadChunks.remove(session);
+                if (data == null) {
+                    respond(ex, 404, "application/json", new byte[0]);
+                    return;
+                }
+                data.writeBytes(ex.getRequestBody().readAllBytes());
+                byte[] content = data.toByteArray();
+                String digest = "sha256:" + Digests.sha256(content);
+                if (!digest.equals(query.get("digest"))) {
+                    respond(ex, 400, "application/json", "{\"errors\":[{\"code\":\"DIGEST_INVALID\"}]}".getBytes());
+                    return;
+                }
+                putBlob(repository, content);
+                events.add("upload " + repository + "@" + digest + " in " + chunks + " chunks");
+                ex.getResponseHeaders().add("Location", "/v2/" + repository + "/blobs/" + digest);
+                respond(ex, 201, "application/json", new byte[0]);
+            }
+            case "DELETE" -> {
+                uploads.remove(session);
+                uploadChunks.remove(session);
+                respond(ex, 204, "application/json", new byte[0]);
+            }
+            default -> respond(ex, 405, "application/json", new byte[0]);
+        }
+    }
+
+    private static void respond(HttpExchange ex, int status, String contentType, byte[] body) throws IOException {
+        ex.getResponseHeaders().add("Content-Type", contentType);
+        if (ex.getRequestMethod().equals("HEAD")) body = null;
+        ex.sendResponseHeaders(status, body == null || body.length == 0 ? -1 : body.length);
+        if (body != null && body.length > 0) {
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        ex.close();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}